@@ -0,0 +1,259 @@
+package org.lappsgrid.mallet;
+
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests the inference services process at once, so that a
+ * burst of requests is turned away instead of filling the heap with parsed
+ * documents until every request slows down.
+ * <p>
+ * At most <code>mallet.admission.maxInFlight</code> requests are processed at
+ * once. Requests over the limit wait, in the order they came in, for up to
+ * <code>mallet.admission.maxQueueWaitMillis</code> milliseconds; at most
+ * <code>mallet.admission.maxQueued</code> of them wait at a time, and the
+ * rest are rejected right away. A maxInFlight of 0, the default, admits every
+ * request. The limits can be changed at runtime through JMX, where the
+ * counters are registered as <code>org.lappsgrid.mallet:type=AdmissionControl</code>.
+ * <p>
+ * A service calls {@link #admit()} before it parses a request, and
+ * {@link #release()} once it has its response. Requests made with
+ * executeAsync are released when their future completes, so they count
+ * against the limit while they wait in the {@link InferenceExecutor}.
+ */
+public class AdmissionControl implements AdmissionControlMXBean {
+    public static final String MAX_IN_FLIGHT = "mallet.admission.maxInFlight";
+    public static final String MAX_QUEUED = "mallet.admission.maxQueued";
+    public static final String MAX_QUEUE_WAIT = "mallet.admission.maxQueueWaitMillis";
+
+    private static final AdmissionControl instance = new AdmissionControl(
+            Integer.getInteger(MAX_IN_FLIGHT, 0),
+            Integer.getInteger(MAX_QUEUED, 64),
+            Long.getLong(MAX_QUEUE_WAIT, 1000));
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance,
+                    new ObjectName("org.lappsgrid.mallet:type=AdmissionControl"));
+        } catch (JMException e) {
+            // Most likely another copy of the webapp already registered one.
+            e.printStackTrace();
+        }
+    }
+
+    public static AdmissionControl getInstance() {
+        return instance;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // the waiting requests, oldest first; a request is only admitted once
+    // every request ahead of it has been
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private int maxInFlight;
+    private int maxQueued;
+    private long maxQueueWaitMillis;
+    private int inFlight;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    AdmissionControl(int maxInFlight, int maxQueued, long maxQueueWaitMillis) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
+    /**
+     * Waits until the request may be processed. Returns false if the request
+     * is rejected, in which case the service returns {@link #rejection()} and
+     * must not call release.
+     */
+    public boolean admit() {
+        lock.lock();
+        try {
+            if (maxInFlight <= 0 || (inFlight < maxInFlight && waiters.isEmpty())) {
+                inFlight++;
+                admitted.incrementAndGet();
+                return true;
+            }
+            if (waiters.size() >= maxQueued) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            queued.incrementAndGet();
+            Waiter waiter = new Waiter(lock.newCondition());
+            waiters.addLast(waiter);
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+                while (!waiter.admitted) {
+                    if (nanos <= 0) {
+                        waiters.remove(waiter);
+                        timedOut.incrementAndGet();
+                        rejected.incrementAndGet();
+                        return false;
+                    }
+                    nanos = waiter.turn.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (waiter.admitted) {
+                    // our turn came anyway, so pass it on to the next request
+                    inFlight--;
+                    admitWaiting();
+                } else {
+                    waiters.remove(waiter);
+                }
+                rejected.incrementAndGet();
+                return false;
+            }
+            admitted.incrementAndGet();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a request that was admitted.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            admitWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands the free places to the oldest waiting requests. Places are taken
+    // here, on their behalf, so a request that comes in before they wake up
+    // cannot overtake them.
+    private void admitWaiting() {
+        while (!waiters.isEmpty() && (maxInFlight <= 0 || inFlight < maxInFlight)) {
+            Waiter waiter = waiters.removeFirst();
+            waiter.admitted = true;
+            inFlight++;
+            waiter.turn.signal();
+        }
+    }
+
+    /**
+     * The response to a request that was rejected.
+     */
+    public String rejection() {
+        return new Data<>(Discriminators.Uri.ERROR, "Too many requests, try again later").asJson();
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxInFlight() {
+        lock.lock();
+        try {
+            return maxInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        lock.lock();
+        try {
+            this.maxInFlight = maxInFlight;
+            // a higher limit may admit waiting requests
+            admitWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueued() {
+        lock.lock();
+        try {
+            return maxQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxQueued(int maxQueued) {
+        lock.lock();
+        try {
+            this.maxQueued = maxQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxQueueWaitMillis() {
+        lock.lock();
+        try {
+            return maxQueueWaitMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        lock.lock();
+        try {
+            this.maxQueueWaitMillis = maxQueueWaitMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Waiter {
+        // signalled once the request has been admitted
+        final Condition turn;
+        // guarded by the lock
+        boolean admitted;
+
+        Waiter(Condition turn) {
+            this.turn = turn;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.lappsgrid.mallet;
+
+/**
+ * Management interface for the {@link AdmissionControl}. Registered with the
+ * platform MBean server as <code>org.lappsgrid.mallet:type=AdmissionControl</code>.
+ */
+public interface AdmissionControlMXBean {
+    long getAdmitted();
+    long getQueued();
+    long getRejected();
+    long getTimedOut();
+
+    int getInFlight();
+    int getQueueLength();
+
+    int getMaxInFlight();
+    void setMaxInFlight(int maxInFlight);
+
+    int getMaxQueued();
+    void setMaxQueued(int maxQueued);
+
+    long getMaxQueueWaitMillis();
+    void setMaxQueueWaitMillis(long maxQueueWaitMillis);
+}
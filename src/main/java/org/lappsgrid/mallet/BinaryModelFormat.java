@@ -0,0 +1,584 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.SparseVector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact, versioned binary alternative to the Java serialized .classifier,
+ * .inferencer and .model files.
+ * <p>
+ * Every file starts with the magic bytes <code>MALLETBM</code>, the format
+ * version and the kind of model it holds:
+ * <ul>
+ * <li>TopicInferencers are stored entirely as primitive arrays: the
+ * hyperparameters, the tokens per topic, the type/topic counts flattened
+ * into a single int array with a table of offsets, and finally the alphabet
+ * as a string table.</li>
+ * <li>Classifiers and CRFs keep their pipes and states as a Java serialized
+ * object graph, but the bulk of the model is moved out of the graph and
+ * precedes it: every alphabet of strings as a string table, and every array
+ * of ints or doubles (the parameters of a MaxEnt classifier, the default,
+ * initial and final weights of a CRF) as a block of numbers. The weights of
+ * a CRF, sparse vectors that serialize themselves one number at a time, are
+ * stored as a block of indices and a block of values each, and rebuilt from
+ * them.</li>
+ * </ul>
+ * A string table is a growth-stopped flag, the number of entries, and every
+ * entry as a length prefixed block of UTF-8 bytes. A block of numbers is its
+ * type, its length and its values. All numbers are big endian.
+ * <p>
+ * Existing models can be converted with
+ * <pre>java org.lappsgrid.mallet.BinaryModelFormat input-file output-file</pre>
+ */
+public final class BinaryModelFormat {
+    static final byte[] MAGIC = "MALLETBM".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 2;
+
+    static final int TOPIC_INFERENCER = 1;
+    static final int OBJECT_GRAPH = 2;
+
+    // the types of the blocks of numbers of an object graph
+    static final int INTS = 1;
+    static final int DOUBLES = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BinaryModelFormat() {
+    }
+
+    /**
+     * Returns true if the stream starts with a binary model. The stream must
+     * support mark/reset and is left where it was.
+     */
+    public static boolean isBinary(InputStream in) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        in.mark(header.length);
+        try {
+            int n = 0;
+            while (n < header.length) {
+                int read = in.read(header, n, header.length - n);
+                if (read < 0) {
+                    return false;
+                }
+                n += read;
+            }
+            return Arrays.equals(header, MAGIC);
+        } finally {
+            in.reset();
+        }
+    }
+
+    public static void write(Object model, OutputStream stream) throws IOException {
+        Out out = new Out(stream);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        if (model.getClass() == TopicInferencer.class) {
+            out.writeInt(TOPIC_INFERENCER);
+            writeInferencer((TopicInferencer) model, out);
+        } else {
+            out.writeInt(OBJECT_GRAPH);
+            writeGraph(model, out);
+        }
+        out.flush();
+    }
+
+    public static Object read(InputStream stream) throws IOException, ClassNotFoundException {
+        In in = new In(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readBytes(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new StreamCorruptedException("Not a binary Mallet model");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported binary model version " + version);
+        }
+        int kind = in.readInt();
+        switch (kind) {
+            case TOPIC_INFERENCER:
+                return readInferencer(in);
+            case OBJECT_GRAPH:
+                return readGraph(in);
+            default:
+                throw new StreamCorruptedException("Unknown binary model kind " + kind);
+        }
+    }
+
+    /**
+     * Converts a Java serialized model file, which may be compressed, to the
+     * binary format. The input and output may be the same file; the output is
+     * written to a temporary file first and moved into place when complete.
+     */
+    public static void convert(File input, File output) throws IOException, ClassNotFoundException {
+        Object model;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+                ModelCompression.decompress(new FileInputStream(input)), BUFFER_SIZE))) {
+            model = ois.readObject();
+        }
+        File temp = new File(output.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            write(model, out);
+        }
+        Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: java " + BinaryModelFormat.class.getName() + " input-file output-file");
+            System.exit(1);
+        }
+        convert(new File(args[0]), new File(args[1]));
+    }
+
+    private static void writeInferencer(TopicInferencer inferencer, Out out) throws IOException {
+        int[][] typeTopicCounts = Inferencers.typeTopicCounts(inferencer);
+        int[] tokensPerTopic = Inferencers.tokensPerTopic(inferencer);
+        out.writeInt(tokensPerTopic.length);
+        out.writeInt(typeTopicCounts.length);
+        out.writeDouble(Inferencers.beta(inferencer));
+        out.writeDouble(Inferencers.betaSum(inferencer));
+        out.writeDoubles(Inferencers.alpha(inferencer));
+        out.writeInts(tokensPerTopic);
+
+        int[] offsets = new int[typeTopicCounts.length + 1];
+        for (int type = 0; type < typeTopicCounts.length; type++) {
+            offsets[type + 1] = offsets[type] + typeTopicCounts[type].length;
+        }
+        out.writeInts(offsets);
+        for (int[] counts : typeTopicCounts) {
+            out.writeInts(counts);
+        }
+        out.writeAlphabet(Inferencers.alphabet(inferencer));
+    }
+
+    private static TopicInferencer readInferencer(In in) throws IOException {
+        int numTopics = in.readInt();
+        int numTypes = in.readInt();
+        double beta = in.readDouble();
+        double betaSum = in.readDouble();
+        double[] alpha = new double[numTopics];
+        in.readDoubles(alpha);
+        int[] tokensPerTopic = new int[numTopics];
+        in.readInts(tokensPerTopic);
+
+        int[] offsets = new int[numTypes + 1];
+        in.readInts(offsets);
+        int[][] typeTopicCounts = new int[numTypes][];
+        for (int type = 0; type < numTypes; type++) {
+            typeTopicCounts[type] = new int[offsets[type + 1] - offsets[type]];
+            in.readInts(typeTopicCounts[type]);
+        }
+        Alphabet alphabet = in.readAlphabet();
+        return new TopicInferencer(typeTopicCounts, tokensPerTopic, alphabet, alpha, beta, betaSum);
+    }
+
+    private static void writeGraph(Object model, Out out) throws IOException {
+        // serialize first, the alphabets and arrays are collected as they are found
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        ExtractingOutputStream oos = new ExtractingOutputStream(bytes);
+        oos.writeObject(model);
+        oos.close();
+
+        out.writeInt(oos.alphabets.size());
+        for (Alphabet alphabet : oos.alphabets) {
+            out.writeAlphabet(alphabet);
+        }
+        out.writeInt(oos.blocks.size());
+        for (Object block : oos.blocks) {
+            if (block instanceof int[]) {
+                out.writeInt(INTS);
+                out.writeInt(((int[]) block).length);
+                out.writeInts((int[]) block);
+            } else {
+                out.writeInt(DOUBLES);
+                out.writeInt(((double[]) block).length);
+                out.writeDoubles((double[]) block);
+            }
+        }
+        bytes.writeTo(out.out);
+    }
+
+    private static Object readGraph(In in) throws IOException, ClassNotFoundException {
+        int count = in.readInt();
+        List<Alphabet> alphabets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            alphabets.add(in.readAlphabet());
+        }
+        count = in.readInt();
+        List<Object> blocks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int type = in.readInt();
+            int length = in.readInt();
+            if (type == INTS) {
+                int[] block = new int[length];
+                in.readInts(block);
+                blocks.add(block);
+            } else if (type == DOUBLES) {
+                double[] block = new double[length];
+                in.readDoubles(block);
+                blocks.add(block);
+            } else {
+                throw new StreamCorruptedException("Unknown block type " + type);
+            }
+        }
+        try (ObjectInputStream ois = new ResolvingInputStream(in.remaining(), alphabets, blocks)) {
+            return ois.readObject();
+        }
+    }
+
+    // Only plain alphabets of strings are moved to string tables. Label
+    // alphabets are left alone, since the Labels they hold are referenced
+    // from elsewhere in the graph.
+    private static boolean isStringAlphabet(Object object) {
+        if (object.getClass() != Alphabet.class) {
+            return false;
+        }
+        Alphabet alphabet = (Alphabet) object;
+        for (int i = 0; i < alphabet.size(); i++) {
+            if (!(alphabet.lookupObject(i) instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The constructor a sparse vector can be rebuilt with from its indices
+    // and values, or null if it can not be. Vectors that are binary or dense
+    // are left in the object graph.
+    private static Constructor<?> rebuilder(SparseVector vector) {
+        if (vector.getIndices() == null || vector.getValues() == null) {
+            return null;
+        }
+        try {
+            return vector.getClass().getConstructor(int[].class, double[].class,
+                    int.class, int.class, boolean.class, boolean.class, boolean.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stands in for an alphabet in the serialized object graph.
+     */
+    private static class AlphabetRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int index;
+
+        AlphabetRef(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Stands in for an array of ints or doubles in the serialized object graph.
+     */
+    private static class ArrayRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int index;
+
+        ArrayRef(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Stands in for an array of sparse vectors, such as the weights of a CRF,
+     * in the serialized object graph. Every vector that is not null is two
+     * consecutive blocks, its indices and its values.
+     */
+    private static class SparseVectorsRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final Class<?> type;
+        // the class and number of locations of every vector, a null class
+        // for a null vector
+        final Class<?>[] classes;
+        final int[] sizes;
+        final int first;
+
+        SparseVectorsRef(Class<?> type, Class<?>[] classes, int[] sizes, int first) {
+            this.type = type;
+            this.classes = classes;
+            this.sizes = sizes;
+            this.first = first;
+        }
+    }
+
+    private static class ExtractingOutputStream extends ObjectOutputStream {
+        final List<Alphabet> alphabets = new ArrayList<>();
+        final List<Object> blocks = new ArrayList<>();
+
+        ExtractingOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object object) {
+            if (isStringAlphabet(object)) {
+                alphabets.add((Alphabet) object);
+                return new AlphabetRef(alphabets.size() - 1);
+            }
+            if (object instanceof int[] || object instanceof double[]) {
+                blocks.add(object);
+                return new ArrayRef(blocks.size() - 1);
+            }
+            if (object instanceof SparseVector[]) {
+                return replaceVectors((SparseVector[]) object);
+            }
+            return object;
+        }
+
+        private Object replaceVectors(SparseVector[] vectors) {
+            Class<?>[] classes = new Class<?>[vectors.length];
+            int[] sizes = new int[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                if (vectors[i] != null) {
+                    if (rebuilder(vectors[i]) == null) {
+                        return vectors;
+                    }
+                    classes[i] = vectors[i].getClass();
+                    sizes[i] = vectors[i].numLocations();
+                }
+            }
+            int first = blocks.size();
+            for (SparseVector vector : vectors) {
+                if (vector != null) {
+                    blocks.add(vector.getIndices());
+                    blocks.add(vector.getValues());
+                }
+            }
+            return new SparseVectorsRef(vectors.getClass().getComponentType(), classes, sizes, first);
+        }
+    }
+
+    private static class ResolvingInputStream extends ObjectInputStream {
+        final List<Alphabet> alphabets;
+        final List<Object> blocks;
+
+        ResolvingInputStream(InputStream in, List<Alphabet> alphabets, List<Object> blocks) throws IOException {
+            super(in);
+            this.alphabets = alphabets;
+            this.blocks = blocks;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object object) throws IOException {
+            if (object instanceof AlphabetRef) {
+                return alphabets.get(((AlphabetRef) object).index);
+            }
+            if (object instanceof ArrayRef) {
+                return blocks.get(((ArrayRef) object).index);
+            }
+            if (object instanceof SparseVectorsRef) {
+                return resolveVectors((SparseVectorsRef) object);
+            }
+            return object;
+        }
+
+        private Object resolveVectors(SparseVectorsRef ref) throws IOException {
+            SparseVector[] vectors = (SparseVector[]) Array.newInstance(ref.type, ref.classes.length);
+            int block = ref.first;
+            for (int i = 0; i < vectors.length; i++) {
+                if (ref.classes[i] == null) {
+                    continue;
+                }
+                int[] indices = (int[]) blocks.get(block++);
+                double[] values = (double[]) blocks.get(block++);
+                try {
+                    // the arrays are the vector's own, as they were written
+                    vectors[i] = (SparseVector) ref.classes[i].getConstructor(int[].class, double[].class,
+                            int.class, int.class, boolean.class, boolean.class, boolean.class)
+                            .newInstance(indices, values, indices.length, ref.sizes[i], false, false, false);
+                } catch (ReflectiveOperationException e) {
+                    InvalidObjectException invalid = new InvalidObjectException(
+                            "Unable to rebuild a " + ref.classes[i].getName());
+                    invalid.initCause(e);
+                    throw invalid;
+                }
+            }
+            return vectors;
+        }
+    }
+
+    private static class Out {
+        final DataOutputStream out;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Out(OutputStream stream) {
+            out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+        }
+
+        void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+        }
+
+        void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        void writeInts(int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                int n = Math.min(buffer.capacity() / 4, values.length - offset);
+                buffer.clear();
+                buffer.asIntBuffer().put(values, offset, n);
+                out.write(buffer.array(), 0, n * 4);
+                offset += n;
+            }
+        }
+
+        void writeDoubles(double[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                int n = Math.min(buffer.capacity() / 8, values.length - offset);
+                buffer.clear();
+                buffer.asDoubleBuffer().put(values, offset, n);
+                out.write(buffer.array(), 0, n * 8);
+                offset += n;
+            }
+        }
+
+        void writeAlphabet(Alphabet alphabet) throws IOException {
+            out.writeBoolean(alphabet.growthStopped());
+            out.writeInt(alphabet.size());
+            for (int i = 0; i < alphabet.size(); i++) {
+                byte[] bytes = alphabet.lookupObject(i).toString().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static class In {
+        final ReadableByteChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        In(InputStream stream) {
+            channel = Channels.newChannel(stream);
+            buffer.flip();
+        }
+
+        // make sure at least n bytes are buffered
+        private void require(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        double readDouble() throws IOException {
+            require(8);
+            return buffer.getDouble();
+        }
+
+        boolean readBoolean() throws IOException {
+            require(1);
+            return buffer.get() != 0;
+        }
+
+        void readBytes(byte[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                require(1);
+                int n = Math.min(buffer.remaining(), values.length - offset);
+                buffer.get(values, offset, n);
+                offset += n;
+            }
+        }
+
+        void readInts(int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                require(4);
+                int n = Math.min(buffer.remaining() / 4, values.length - offset);
+                buffer.asIntBuffer().get(values, offset, n);
+                buffer.position(buffer.position() + n * 4);
+                offset += n;
+            }
+        }
+
+        void readDoubles(double[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                require(8);
+                int n = Math.min(buffer.remaining() / 8, values.length - offset);
+                buffer.asDoubleBuffer().get(values, offset, n);
+                buffer.position(buffer.position() + n * 8);
+                offset += n;
+            }
+        }
+
+        Alphabet readAlphabet() throws IOException {
+            boolean growthStopped = readBoolean();
+            int size = readInt();
+            Alphabet alphabet = new Alphabet(size);
+            for (int i = 0; i < size; i++) {
+                byte[] bytes = new byte[readInt()];
+                readBytes(bytes);
+                alphabet.lookupIndex(new String(bytes, StandardCharsets.UTF_8));
+            }
+            if (growthStopped) {
+                alphabet.stopGrowth();
+            }
+            return alphabet;
+        }
+
+        // whatever is left, starting with the bytes we have already buffered
+        InputStream remaining() {
+            InputStream buffered = new ByteArrayInputStream(
+                    buffer.array(), buffer.position(), buffer.remaining());
+            return new SequenceInputStream(buffered, Channels.newInputStream(channel));
+        }
+    }
+}
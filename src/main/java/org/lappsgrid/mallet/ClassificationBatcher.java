@@ -0,0 +1,181 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.classify.Classification;
+import cc.mallet.classify.Classifier;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.StringArrayIterator;
+import cc.mallet.types.InstanceList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies the documents of concurrent single document requests for the
+ * same classifier as one batch, so that they share a pass through the pipe
+ * and the classifier.
+ * <p>
+ * A request that finds the classifier idle is classified right away, on its
+ * own. A request that finds it busy opens a batch and waits for other
+ * requests to join it, until a batch of the classifier finishes or
+ * <code>mallet.batch.windowMillis</code> milliseconds pass, then classifies
+ * the batch; a batch that reaches <code>mallet.batch.maxDocuments</code>
+ * documents is classified right away by the request that filled it. Every
+ * request then gets the classification of its own document. A window of 0,
+ * the default, disables batching.
+ * <p>
+ * The requests that joined a batch wait at most the window and
+ * <code>mallet.batch.timeoutMillis</code> milliseconds for it to be
+ * classified, and get the exception of a batch that could not be.
+ */
+final class ClassificationBatcher {
+    static final String WINDOW = "mallet.batch.windowMillis";
+    static final String MAX_DOCUMENTS = "mallet.batch.maxDocuments";
+    static final String TIMEOUT = "mallet.batch.timeoutMillis";
+
+    private static final ClassificationBatcher instance = new ClassificationBatcher(
+            Long.getLong(WINDOW, 0), Integer.getInteger(MAX_DOCUMENTS, 32), Long.getLong(TIMEOUT, 60000));
+
+    static ClassificationBatcher getInstance() {
+        return instance;
+    }
+
+    private final long windowMillis;
+    private final int maxDocuments;
+    private final long timeoutMillis;
+    // the batch each classifier is collecting, and the number of batches
+    // each classifier is classifying, guarded by this
+    private final Map<Classifier, Batch> open = new HashMap<>();
+    private final Map<Classifier, Integer> running = new HashMap<>();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+
+    ClassificationBatcher(long windowMillis, int maxDocuments, long timeoutMillis) {
+        this.windowMillis = windowMillis;
+        this.maxDocuments = maxDocuments;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    boolean isEnabled() {
+        return windowMillis > 0 && maxDocuments > 1;
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getDocuments() {
+        return documents.get();
+    }
+
+    /**
+     * Classifies a document in a batch with the documents of other requests.
+     *
+     * @throws ExecutionException if the batch could not be classified
+     * @throws TimeoutException if the batch was not classified in time
+     */
+    Classification classify(Classifier classifier, String text)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Batch batch;
+        int index;
+        boolean leader = false;
+        boolean closed = false;
+        synchronized (this) {
+            batch = open.get(classifier);
+            if (batch == null) {
+                batch = new Batch();
+                leader = true;
+            }
+            index = batch.texts.size();
+            batch.texts.add(text);
+            if ((leader && !running.containsKey(classifier)) || batch.texts.size() >= maxDocuments) {
+                // nobody is waiting for the classifier, or the batch is full
+                if (!leader) {
+                    open.remove(classifier);
+                }
+                closed = true;
+                started(classifier);
+            } else if (leader) {
+                open.put(classifier, batch);
+            }
+        }
+        if (closed) {
+            batch.closed.countDown();
+            run(classifier, batch);
+        } else if (leader) {
+            try {
+                batch.closed.await(windowMillis, TimeUnit.MILLISECONDS);
+            } finally {
+                // the other requests in the batch are waiting for us, even if
+                // we were interrupted
+                synchronized (this) {
+                    // unless a request filled the batch in the meantime
+                    closed = open.get(classifier) == batch;
+                    if (closed) {
+                        open.remove(classifier);
+                        started(classifier);
+                    }
+                }
+                if (closed) {
+                    run(classifier, batch);
+                }
+            }
+        }
+        return batch.results.get(windowMillis + timeoutMillis, TimeUnit.MILLISECONDS).get(index);
+    }
+
+    // called with the lock held
+    private void started(Classifier classifier) {
+        Integer n = running.get(classifier);
+        running.put(classifier, n == null ? 1 : n + 1);
+    }
+
+    private void run(Classifier classifier, Batch batch) {
+        try {
+            String[] texts = batch.texts.toArray(new String[batch.texts.size()]);
+            // the tokenizer in the pipe is not thread safe
+            Pipe pipe = classifier.getInstancePipe();
+            InstanceList instances = new InstanceList(pipe);
+            synchronized (pipe) {
+                instances.addThruPipe(new StringArrayIterator(texts));
+            }
+            batch.results.complete(classifier.classify(instances));
+            batches.incrementAndGet();
+            documents.addAndGet(texts.length);
+        } catch (Throwable e) {
+            // every request in the batch gets the failure
+            batch.results.completeExceptionally(e);
+        } finally {
+            Batch next;
+            synchronized (this) {
+                int n = running.get(classifier) - 1;
+                if (n == 0) {
+                    running.remove(classifier);
+                } else {
+                    running.put(classifier, n);
+                }
+                next = open.get(classifier);
+            }
+            // the batch collected while we were classifying need not wait
+            // out its window
+            if (next != null) {
+                next.closed.countDown();
+            }
+        }
+    }
+
+    private static final class Batch {
+        // added to while the batch is open, read once it is closed
+        final List<String> texts = new ArrayList<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        final CompletableFuture<List<Classification>> results = new CompletableFuture<>();
+    }
+}
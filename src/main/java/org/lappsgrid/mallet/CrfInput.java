@@ -0,0 +1,76 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.SimpleTagger;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the input sequence of a CRF trained by SimpleTagger straight from
+ * the words of the tokens.
+ * <p>
+ * SimpleTagger's input pipe parses a "word label" line per token and looks
+ * every word up in the CRF's input alphabet. Doing the lookup ourselves
+ * saves writing the tokens into a text and parsing it again, and since the
+ * alphabet of a cached model no longer grows the lookup needs no lock.
+ */
+final class CrfInput {
+    // what SimpleTagger's pipe splits a line into features on
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private CrfInput() {
+    }
+
+    /**
+     * Returns true if the CRF reads its input with SimpleTagger's pipe.
+     */
+    static boolean isSupported(CRF crf) {
+        return crf.getInputPipe() instanceof SimpleTagger.SimpleTaggerSentence2FeatureVectorSequence;
+    }
+
+    /**
+     * Returns the input sequence for the words, one feature vector per word.
+     * Like SimpleTagger's pipe, a word containing whitespace has one feature
+     * per part and words the model has never seen have no features.
+     */
+    static FeatureVectorSequence sequence(CRF crf, List<String> words) {
+        Alphabet alphabet = crf.getInputAlphabet();
+        FeatureVector[] vectors = new FeatureVector[words.size()];
+        for (int i = 0; i < vectors.length; i++) {
+            String word = words.get(i);
+            int[] features;
+            if (!hasWhitespace(word)) {
+                int index = alphabet.lookupIndex(word, false);
+                features = index >= 0 ? new int[]{index} : new int[0];
+            } else {
+                String[] parts = WHITESPACE.split(word);
+                features = new int[parts.length];
+                int n = 0;
+                for (String part : parts) {
+                    int index = alphabet.lookupIndex(part, false);
+                    if (index >= 0) {
+                        features[n++] = index;
+                    }
+                }
+                features = Arrays.copyOf(features, n);
+            }
+            vectors[i] = new FeatureVector(alphabet, features);
+        }
+        return new FeatureVectorSequence(vectors);
+    }
+
+    // the characters \s matches
+    private static boolean hasWhitespace(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (" \t\n\u000B\f\r".indexOf(word.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,8 +1,11 @@
 package org.lappsgrid.mallet;
 
 
+import cc.mallet.classify.Classification;
 import cc.mallet.classify.Classifier;
+import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.iterator.StringArrayIterator;
+import cc.mallet.types.InstanceList;
 import cc.mallet.types.Labeling;
 import org.apache.axis.Version;
 import org.lappsgrid.api.ProcessingService;
@@ -12,22 +15,30 @@ import org.lappsgrid.metadata.IOSpecification;
 import org.lappsgrid.metadata.ServiceMetadata;
 import org.lappsgrid.serialization.Data;
 import org.lappsgrid.serialization.DataContainer;
-import org.lappsgrid.serialization.Serializer;
 import org.lappsgrid.serialization.lif.Annotation;
 import org.lappsgrid.serialization.lif.Container;
 import org.lappsgrid.serialization.lif.View;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 
 public class DocumentClassification implements ProcessingService {
+    private static final StageTimers timers = StageTimers.forService(DocumentClassification.class);
+
     public DocumentClassification() {
     }
 
@@ -67,9 +78,76 @@ public class DocumentClassification implements ProcessingService {
     }
 
     public String execute(String input) {
-        // Parse the input.
-        Data data = Serializer.parse(input, Data.class);
+        // turn the request away before parsing it if we are too busy
+        AdmissionControl admission = AdmissionControl.getInstance();
+        if (!admission.admit()) {
+            return admission.rejection();
+        }
+        try {
+            // Parse the input. The views of LIF documents are only built if we need them.
+            long start = System.nanoTime();
+            Data data;
+            try {
+                data = LifReader.parse(input);
+            } catch (IOException e) {
+                return new Data<>(Uri.ERROR, "Unable to parse input: " + e.getMessage()).asJson();
+            }
+            timers.record(StageTimers.PARSE, start);
+
+            return execute(data, input);
+        } finally {
+            admission.release();
+        }
+    }
+
+    /**
+     * Processes the request on the {@link InferenceExecutor}, which limits how
+     * many requests for each classifier run at once. The future completes with
+     * the response execute would return.
+     */
+    public CompletableFuture<String> executeAsync(final String input) {
+        // turn the request away before parsing it if we are too busy; an
+        // admitted request keeps its place while it waits for its model
+        final AdmissionControl admission = AdmissionControl.getInstance();
+        if (!admission.admit()) {
+            return CompletableFuture.completedFuture(admission.rejection());
+        }
+        boolean submitted = false;
+        try {
+            // the request is parsed first, to know which model it is for
+            long start = System.nanoTime();
+            final Data<Object> data;
+            try {
+                data = LifReader.parse(input);
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(
+                        new Data<>(Uri.ERROR, "Unable to parse input: " + e.getMessage()).asJson());
+            }
+            timers.record(StageTimers.PARSE, start);
 
+            // the lane of the model, the default one if the request names none
+            String model = InferenceExecutor.model(data.getParameter("classifier"),
+                    this.getClass().getResource("/masc_500k_texts.classifier"));
+            CompletableFuture<String> response = InferenceExecutor.getInstance().submit(model, new Callable<String>() {
+                public String call() {
+                    return execute(data, input);
+                }
+            });
+            response.whenComplete(new BiConsumer<String, Throwable>() {
+                public void accept(String json, Throwable e) {
+                    admission.release();
+                }
+            });
+            submitted = true;
+            return response;
+        } finally {
+            if (!submitted) {
+                admission.release();
+            }
+        }
+    }
+
+    private String execute(Data data, String input) {
         // Check the discriminator
         final String discriminator = data.getDiscriminator();
         if (discriminator.equals(Uri.ERROR)) {
@@ -77,55 +155,69 @@ public class DocumentClassification implements ProcessingService {
             return input;
         }
 
-        // Extract the text.
-        Container container;
-        if (discriminator.equals(Uri.TEXT)) {
-            container = new Container();
-            container.setText(data.getPayload().toString());
+        // Extract the text. A list payload is a batch of documents, each
+        // either a text or a LIF container.
+        Object payload = data.getPayload();
+        boolean batch = payload instanceof List;
+        List<LifDocument> documents = new ArrayList<>();
+        if (batch && (discriminator.equals(Uri.TEXT) || discriminator.equals(Uri.LAPPS)
+                || discriminator.equals(Uri.JSON))) {
+            for (Object document : (List) payload) {
+                documents.add(toDocument(document));
+            }
+        } else if (discriminator.equals(Uri.TEXT)) {
+            documents.add(new LifDocument(payload.toString()));
         } else if (discriminator.equals(Uri.LAPPS)) {
-            container = new Container((Map) data.getPayload());
+            documents.add((LifDocument) payload);
         } else {
             // This is a format we don't accept.
             String message = String.format("Unsupported discriminator type: %s", discriminator);
             return new Data<>(Uri.ERROR, message).asJson();
         }
 
-        // Create a new View
-        View view = container.newView();
+        // Get input texts
+        String[] texts = new String[documents.size()];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = documents.get(i).getText();
+        }
 
-        // Get input text
-        String text = container.getText();
-        StringArrayIterator sai = new StringArrayIterator
-                (new String[]{text});
+        // limit the output to the most likely labels?
+        OutputLimits limits;
+        try {
+            limits = OutputLimits.from(data);
+        } catch (IllegalArgumentException e) {
+            return new Data<>(Uri.ERROR, e.getMessage()).asJson();
+        }
 
-        // get the document classification .classifier file as an InputStream
+        // get the document classification .classifier file URL
         Object classifier = data.getParameter("classifier");
-        InputStream inputStream;
+        URL url;
         if (classifier == null) {
             String defaultClassifier = "/masc_500k_texts.classifier";
-            inputStream = this.getClass().getResourceAsStream(defaultClassifier);
-            data.setParameter("model", this.getClass().getResource(defaultClassifier));
+            url = this.getClass().getResource(defaultClassifier);
+            if (url == null) {
+                String message = "No classifier given and the default classifier is not installed";
+                return new Data<>(Uri.ERROR, message).asJson();
+            }
+            data.setParameter("classifier", url);
         } else {
             try {
-                URL url = new URL(classifier.toString());
-                inputStream = url.openStream();
+                url = new URL(classifier.toString());
             } catch (MalformedURLException e) {
                 e.printStackTrace();
                 String message = "Path to file not valid";
                 return new Data<>(Uri.ERROR, message).asJson();
-            } catch (IOException e) {
-                e.printStackTrace();
-                String message = "Unable to open file";
-                return new Data<>(Uri.ERROR, message).asJson();
             }
         }
 
-        // load the classifier
+        // load the classifier, or get the copy cached by an earlier request
         Classifier c;
+        boolean loaded = ModelCache.getInstance().contains(url, null, false);
+        long start = System.nanoTime();
         try {
-            ObjectInputStream ois = new ObjectInputStream(inputStream);
-            c = (Classifier) ois.readObject();
-            ois.close();
+            c = ModelCache.getInstance().get(url, Classifier.class);
+        } catch (ModelTooLargeException e) {
+            return new Data<>(Uri.ERROR, e.getMessage()).asJson();
         } catch (IOException e) {
             e.printStackTrace();
             String message = "Unable to read classifier file";
@@ -135,28 +227,219 @@ public class DocumentClassification implements ProcessingService {
             String message = "Invalid classifier file";
             return new Data<>(Uri.ERROR, message).asJson();
         }
+        timers.record(loaded ? StageTimers.MODEL_LOAD_HIT : StageTimers.MODEL_LOAD_MISS, start);
+
+        // reuse the results of documents we have classified before; only
+        // the ranks in the output are cached, so the limits are part of the key
+        ResultCache cache = ResultCache.getInstance();
+        boolean caching = cache.isEnabled();
+        Ranking[] rankings = new Ranking[texts.length];
+        String[] keys = new String[texts.length];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            if (caching) {
+                keys[i] = cache.key(c, "classification", limits.topK, limits.minProbability, texts[i]);
+                rankings[i] = (Ranking) cache.get(keys[i]);
+            }
+            if (rankings[i] == null) {
+                missing.add(i);
+            }
+        }
+
+        // classify the rest
+        // the whole batch goes through the pipe in one pass; the classifier
+        // (and its pipe) are shared with other requests, and the tokenizer in
+        // the pipe is not thread safe
+        if (!missing.isEmpty()) {
+            String[] missingTexts = new String[missing.size()];
+            for (int m = 0; m < missingTexts.length; m++) {
+                missingTexts[m] = texts[missing.get(m)];
+            }
+            List<Classification> classifications;
+            ClassificationBatcher batcher = ClassificationBatcher.getInstance();
+            start = System.nanoTime();
+            if (missingTexts.length == 1 && batcher.isEnabled()) {
+                // a single document joins the documents of concurrent requests;
+                // piping the batch and the wait for it count as inference
+                try {
+                    classifications = Collections.singletonList(batcher.classify(c, missingTexts[0]));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new Data<>(Uri.ERROR, "Interrupted while classifying").asJson();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    return new Data<>(Uri.ERROR, "Unable to classify the document").asJson();
+                } catch (TimeoutException e) {
+                    return new Data<>(Uri.ERROR, "Timed out waiting for the batch to be classified").asJson();
+                }
+            } else {
+                Pipe pipe = c.getInstancePipe();
+                InstanceList instances = new InstanceList(pipe);
+                synchronized (pipe) {
+                    instances.addThruPipe(new StringArrayIterator(missingTexts));
+                }
+                start = timers.record(StageTimers.PIPE, start);
+                classifications = c.classify(instances);
+            }
+            timers.record(StageTimers.INFERENCE, start);
+            for (int m = 0; m < classifications.size(); m++) {
+                int i = missing.get(m);
+                rankings[i] = new LabelingRanking(classifications.get(m).getLabeling(), limits);
+                if (caching) {
+                    rankings[i] = new CachedRanking(rankings[i]);
+                    cache.put(keys[i], rankings[i]);
+                }
+            }
+        }
 
+        // stream compact output straight from the rankings?
+        start = System.nanoTime();
+        if (Boolean.TRUE.equals(data.getParameter(LifWriter.COMPACT))) {
+            StringWriter out = new StringWriter();
+            try {
+                writeCompact(new LifWriter(out), documents, rankings, batch, data.getParameters());
+            } catch (IOException e) {
+                // a StringWriter does not throw
+                throw new UncheckedIOException(e);
+            }
+            // building and serializing the output are one step
+            timers.record(StageTimers.SERIALIZE, start);
+            return out.toString();
+        }
 
-        // classify and produce output
-        Iterator instances =
-                c.getInstancePipe().newIteratorFrom(sai);
-        while (instances.hasNext()) {
-            Labeling labeling = c.classify(instances.next()).getLabeling();
+        // produce output
+        List<Container> containers = new ArrayList<>();
+        for (LifDocument document : documents) {
+            containers.add(document.toContainer());
+        }
+        for (int i = 0; i < rankings.length; i++) {
+            Ranking ranking = rankings[i];
 
-            for (int rank = 0; rank < labeling.numLocations(); rank++) {
+            // one view per document
+            View view = containers.get(i).newView();
+            for (int rank = 0; rank < ranking.size(); rank++) {
                 Annotation a = new Annotation();
                 a.setId("documentType" + rank);
-                a.addFeature("documentType" , labeling.getLabelAtRank(rank).toString());
-                a.addFeature("probability", Double.toString(labeling.getValueAtRank(rank)));
+                a.addFeature("documentType" , ranking.label(rank));
+                a.addFeature("probability", Double.toString(ranking.value(rank)));
                 view.add(a);
             }
+            view.addContains("document types", this.getClass().getName(), "document-types:mallet");
         }
-        view.addContains("document types", this.getClass().getName(), "document-types:mallet");
         Map parameters = data.getParameters();
-        data = new DataContainer(container);
-        data.setDiscriminator(Discriminators.Uri.JSON);
+        if (batch) {
+            data = new Data<>(Discriminators.Uri.JSON, containers);
+        } else {
+            data = new DataContainer(containers.get(0));
+            data.setDiscriminator(Discriminators.Uri.JSON);
+        }
         data.setParameters(parameters);
+        start = timers.record(StageTimers.OUTPUT_BUILD, start);
 
-        return data.asPrettyJson();
+        String json = data.asPrettyJson();
+        timers.record(StageTimers.SERIALIZE, start);
+        return json;
+    }
+
+    private void writeCompact(LifWriter writer, List<LifDocument> documents, Ranking[] rankings,
+                              boolean batch, Map parameters) throws IOException {
+        writer.startData(Uri.JSON);
+        if (batch) {
+            writer.startBatch();
+        }
+        for (int i = 0; i < rankings.length; i++) {
+            Ranking ranking = rankings[i];
+            writer.startContainer(documents.get(i));
+            // the id the view gets from Container.newView without compact output
+            writer.startView(documents.get(i).newViewId());
+            writer.contains("document types", this.getClass().getName(), "document-types:mallet");
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                writer.annotation("documentType" + rank,
+                        "documentType", ranking.label(rank),
+                        "probability", Double.toString(ranking.value(rank)));
+            }
+            writer.endView();
+            writer.endContainer();
+        }
+        if (batch) {
+            writer.endBatch();
+        }
+        writer.endData(parameters);
+    }
+
+    // The labels of a document that go into the output and their
+    // probabilities, in rank order.
+    private interface Ranking {
+        int size();
+
+        String label(int rank);
+
+        double value(int rank);
+    }
+
+    // The labels straight from the classification: the first topK ranks at or
+    // above minProbability. Labels are in rank order, so we can stop at the
+    // first one we don't want.
+    private static final class LabelingRanking implements Ranking {
+        final Labeling labeling;
+        final int size;
+
+        LabelingRanking(Labeling labeling, OutputLimits limits) {
+            this.labeling = labeling;
+            int ranks = Math.min(labeling.numLocations(), limits.topK);
+            int n = 0;
+            while (n < ranks && labeling.getValueAtRank(n) >= limits.minProbability) {
+                n++;
+            }
+            size = n;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String label(int rank) {
+            return labeling.getLabelAtRank(rank).toString();
+        }
+
+        public double value(int rank) {
+            return labeling.getValueAtRank(rank);
+        }
+    }
+
+    // A copy of the ranks in the output, which is what the ResultCache keeps
+    // for a classified document, so it does not hold on to the Labeling.
+    private static final class CachedRanking implements Ranking {
+        final String[] labels;
+        final double[] values;
+
+        CachedRanking(Ranking ranking) {
+            labels = new String[ranking.size()];
+            values = new double[labels.length];
+            for (int rank = 0; rank < labels.length; rank++) {
+                labels[rank] = ranking.label(rank);
+                values[rank] = ranking.value(rank);
+            }
+        }
+
+        public int size() {
+            return labels.length;
+        }
+
+        public String label(int rank) {
+            return labels[rank];
+        }
+
+        public double value(int rank) {
+            return values[rank];
+        }
+    }
+
+    // a document in a batch is either a LIF container or its text
+    private static LifDocument toDocument(Object document) {
+        if (document instanceof LifDocument) {
+            return (LifDocument) document;
+        }
+        return new LifDocument(document == null ? "" : document.toString());
     }
 }
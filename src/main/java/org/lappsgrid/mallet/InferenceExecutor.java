@@ -0,0 +1,266 @@
+package org.lappsgrid.mallet;
+
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the requests of the <code>executeAsync</code> methods of the inference
+ * services, off the thread of the caller.
+ * <p>
+ * Requests run on virtual threads when the JDK has them, and on a bounded
+ * pool of daemon threads otherwise. Each model, identified by the URL it is
+ * loaded from, has its own limit: at most
+ * <code>mallet.async.maxConcurrent</code> requests for a model run at once
+ * (the number of processors by default), and at most
+ * <code>mallet.async.maxQueued</code> more wait for their turn (64 by
+ * default). A request that finds the queue of its model full gets an error,
+ * so a slow model can fill its own queue but not hold up requests for other
+ * models. On top of that, at most <code>mallet.async.maxRunning</code>
+ * requests run at once over all models (twice the number of processors by
+ * default); the models with requests waiting for a place take turns.
+ */
+public class InferenceExecutor {
+    public static final String MAX_CONCURRENT = "mallet.async.maxConcurrent";
+    public static final String MAX_QUEUED = "mallet.async.maxQueued";
+    public static final String MAX_RUNNING = "mallet.async.maxRunning";
+
+    private static final InferenceExecutor instance = create();
+
+    private static InferenceExecutor create() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int maxRunning = Integer.getInteger(MAX_RUNNING, 2 * processors);
+        return new InferenceExecutor(executor(maxRunning),
+                Integer.getInteger(MAX_CONCURRENT, processors),
+                Integer.getInteger(MAX_QUEUED, 64), maxRunning);
+    }
+
+    public static InferenceExecutor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the identity of the model a request asks for: the URL in the
+     * given parameter, or the default model if there is none, so that every
+     * way of writing the same URL shares one lane.
+     */
+    static String model(Object parameter, URL defaultModel) {
+        if (parameter == null) {
+            return defaultModel == null ? "default" : defaultModel.toExternalForm();
+        }
+        try {
+            return new URL(parameter.toString()).toURI().normalize().toString();
+        } catch (MalformedURLException | URISyntaxException e) {
+            // the request is answered with an error as soon as it runs
+            return "invalid";
+        }
+    }
+
+    private final Executor executor;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final int maxRunning;
+    // the models with requests running or queued, guarded by this
+    private final Map<String, Lane> lanes = new HashMap<>();
+    // the lanes with requests queued only because maxRunning requests are
+    // running, in the order they became ready
+    private final ArrayDeque<Lane> ready = new ArrayDeque<>();
+    private int running;
+
+    InferenceExecutor(Executor executor, int maxConcurrent, int maxQueued, int maxRunning) {
+        if (maxConcurrent < 1 || maxQueued < 0 || maxRunning < 1) {
+            throw new IllegalArgumentException("Invalid limits: " + maxConcurrent + ", " + maxQueued + ", " + maxRunning);
+        }
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxRunning = maxRunning;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * Returns the number of requests running, for all models.
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of requests for a model that are running or queued.
+     */
+    public synchronized int getPending(String model) {
+        Lane lane = lanes.get(model);
+        return lane == null ? 0 : lane.running + lane.queue.size();
+    }
+
+    /**
+     * Runs a request for a model once fewer than maxConcurrent requests for
+     * the model, and fewer than maxRunning requests in all, are running. The
+     * future completes with the response of the request, or with a LAPPS
+     * error if the request could not be run.
+     */
+    CompletableFuture<String> submit(String model, Callable<String> request) {
+        Task task = new Task(model, request);
+        synchronized (this) {
+            Lane lane = lanes.get(model);
+            if (lane == null) {
+                lane = new Lane();
+                lanes.put(model, lane);
+            }
+            // requests that are already waiting go first
+            boolean now = lane.queue.isEmpty() && ready.isEmpty()
+                    && lane.running < maxConcurrent && running < maxRunning;
+            if (!now) {
+                if (lane.queue.size() >= maxQueued) {
+                    if (lane.running == 0 && lane.queue.isEmpty()) {
+                        lanes.remove(model);
+                    }
+                    task.future.complete(error("Too many requests for " + model));
+                } else {
+                    lane.queue.add(task);
+                    markReady(lane);
+                }
+                return task.future;
+            }
+            lane.running++;
+            running++;
+        }
+        start(task);
+        return task.future;
+    }
+
+    private void start(Task task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            finished(task.model);
+            task.future.complete(error("Unable to run the request"));
+        }
+    }
+
+    // starts the next requests that may run now that one has finished
+    private void finished(String model) {
+        List<Task> next = new ArrayList<>();
+        synchronized (this) {
+            Lane lane = lanes.get(model);
+            lane.running--;
+            running--;
+            markReady(lane);
+            if (lane.running == 0 && lane.queue.isEmpty()) {
+                lanes.remove(model);
+            }
+            // the ready lanes take turns, one request at a time
+            while (running < maxRunning && !ready.isEmpty()) {
+                Lane turn = ready.removeFirst();
+                turn.ready = false;
+                next.add(turn.queue.removeFirst());
+                turn.running++;
+                running++;
+                markReady(turn);
+            }
+        }
+        for (Task task : next) {
+            start(task);
+        }
+    }
+
+    // a lane is ready when it has a request queued that it may run
+    private void markReady(Lane lane) {
+        if (!lane.ready && !lane.queue.isEmpty() && lane.running < maxConcurrent) {
+            lane.ready = true;
+            ready.addLast(lane);
+        }
+    }
+
+    static String error(String message) {
+        return new Data<>(Discriminators.Uri.ERROR, message).asJson();
+    }
+
+    // Virtual threads if the JDK has them (Java 21 and later). Otherwise a
+    // thread for every request that may run, which are let go when idle;
+    // requests started while the request that made way for them is ending
+    // wait for its thread.
+    private static Executor executor(int maxRunning) {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            final AtomicInteger threads = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxRunning, maxRunning, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mallet-inference-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    private static final class Lane {
+        int running;
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        // in the ready queue
+        boolean ready;
+    }
+
+    private final class Task implements Runnable {
+        final String model;
+        final Callable<String> request;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        Task(String model, Callable<String> request) {
+            this.model = model;
+            this.request = request;
+        }
+
+        public void run() {
+            // skip requests that were cancelled while they were queued
+            String response = null;
+            if (!future.isDone()) {
+                try {
+                    response = request.call();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    response = error("Unable to process the request: " + e);
+                }
+            }
+            // leave the lane before the caller hears back, so that it sees
+            // the request as done
+            finished(model);
+            if (response != null) {
+                future.complete(response);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+
+import java.lang.reflect.Field;
+
+/**
+ * Access to the trained parameters of a {@link TopicInferencer}, which Mallet
+ * does not expose through getters.
+ */
+final class Inferencers {
+    private static final Field TYPE_TOPIC_COUNTS = field("typeTopicCounts");
+    private static final Field TOKENS_PER_TOPIC = field("tokensPerTopic");
+    private static final Field ALPHABET = field("alphabet");
+    private static final Field ALPHA = field("alpha");
+    private static final Field BETA = field("beta");
+    private static final Field BETA_SUM = field("betaSum");
+
+    private Inferencers() {
+    }
+
+    static int[][] typeTopicCounts(TopicInferencer inferencer) {
+        return (int[][]) get(TYPE_TOPIC_COUNTS, inferencer);
+    }
+
+    static int[] tokensPerTopic(TopicInferencer inferencer) {
+        return (int[]) get(TOKENS_PER_TOPIC, inferencer);
+    }
+
+    static Alphabet alphabet(TopicInferencer inferencer) {
+        return (Alphabet) get(ALPHABET, inferencer);
+    }
+
+    static double[] alpha(TopicInferencer inferencer) {
+        return (double[]) get(ALPHA, inferencer);
+    }
+
+    static double beta(TopicInferencer inferencer) {
+        return (Double) get(BETA, inferencer);
+    }
+
+    static double betaSum(TopicInferencer inferencer) {
+        return (Double) get(BETA_SUM, inferencer);
+    }
+
+    static int numTopics(TopicInferencer inferencer) {
+        return tokensPerTopic(inferencer).length;
+    }
+
+    private static Object get(Field field, TopicInferencer inferencer) {
+        try {
+            return field.get(inferencer);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Field field(String name) {
+        try {
+            Field field = TopicInferencer.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unsupported Mallet version", e);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.lappsgrid.mallet;
+
+import org.lappsgrid.serialization.Serializer;
+import org.lappsgrid.serialization.lif.Container;
+import org.lappsgrid.serialization.lif.View;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A document read by the {@link LifReader}: its text, its metadata and its
+ * views, which are kept as the JSON they were sent as. A view is only turned
+ * into a View when a service asks for it, and views that are only passed
+ * through to the response are never built at all.
+ */
+final class LifDocument {
+    private final Object context;
+    private final Map metadata;
+    private final String text;
+    private final String language;
+    private final List<String> views;
+    // the metadata and id of every view, to find views without building them
+    private final List<Map> viewMetadata;
+    private final List<String> viewIds;
+
+    /**
+     * A document that was sent as plain text.
+     */
+    LifDocument(String text) {
+        this(null, null, text, null, new ArrayList<String>(), new ArrayList<Map>(), new ArrayList<String>());
+    }
+
+    LifDocument(Object context, Map metadata, String text, String language,
+                List<String> views, List<Map> viewMetadata, List<String> viewIds) {
+        this.context = context;
+        this.metadata = metadata;
+        this.text = text;
+        this.language = language;
+        this.views = views;
+        this.viewMetadata = viewMetadata;
+        this.viewIds = viewIds;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    String getLanguage() {
+        return language;
+    }
+
+    Map getMetadata() {
+        return metadata;
+    }
+
+    int getViewCount() {
+        return views.size();
+    }
+
+    /**
+     * Returns the JSON of a view, as it was sent.
+     */
+    String getRawView(int index) {
+        return views.get(index);
+    }
+
+    /**
+     * Returns the id Container.newView would give the next view of the
+     * document, without building its views.
+     */
+    String newViewId() {
+        Container container = new Container();
+        for (String id : viewIds) {
+            View view = new View();
+            view.setId(id);
+            container.addView(view);
+        }
+        return container.newView().getId();
+    }
+
+    /**
+     * Builds a view. Every call returns a new View.
+     */
+    View getView(int index) {
+        return new View((Map) Serializer.parse(views.get(index), Map.class));
+    }
+
+    /**
+     * Builds the first view that contains annotations of the given type, or
+     * returns null if there is none.
+     */
+    View findViewThatContains(String type) {
+        for (int i = 0; i < views.size(); i++) {
+            Map metadata = viewMetadata.get(i);
+            Object contains = metadata == null ? null : metadata.get("contains");
+            if (contains instanceof Map && ((Map) contains).containsKey(type)) {
+                return getView(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the whole document as a Container.
+     */
+    Container toContainer() {
+        if (context == null && metadata == null && views.isEmpty()) {
+            // plain text
+            Container container = new Container();
+            container.setText(text);
+            return container;
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        if (context != null) {
+            map.put("@context", context);
+        }
+        map.put("metadata", metadata == null ? new LinkedHashMap() : metadata);
+        Map<String, Object> textMap = new LinkedHashMap<>();
+        if (text != null) {
+            textMap.put("@value", text);
+        }
+        if (language != null) {
+            textMap.put("@language", language);
+        }
+        map.put("text", textMap);
+        List<Object> viewMaps = new ArrayList<>(views.size());
+        for (String view : views) {
+            viewMaps.add(Serializer.parse(view, Map.class));
+        }
+        map.put("views", viewMaps);
+        return new Container(map);
+    }
+}
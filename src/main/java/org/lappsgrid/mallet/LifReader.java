@@ -0,0 +1,189 @@
+package org.lappsgrid.mallet;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.lappsgrid.serialization.Data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a request with a streaming parser instead of Serializer.parse, which
+ * builds the whole request, every view of every document included, as nested
+ * maps.
+ * <p>
+ * The payload of the returned Data is the text of a plain text request, a
+ * {@link LifDocument} for a LIF container, or a list of these for a batch.
+ * The views of a container are kept as the JSON they were sent as, along with
+ * their metadata; the parameters and anything else are read as they would be
+ * by Serializer.parse.
+ */
+final class LifReader {
+    private static final JsonFactory factory = new JsonFactory();
+
+    private LifReader() {
+    }
+
+    static Data<Object> parse(String input) throws IOException {
+        String discriminator = null;
+        Object payload = null;
+        Map parameters = null;
+        try (JsonParser parser = factory.createParser(input)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("discriminator".equals(name)) {
+                    discriminator = parser.getValueAsString();
+                } else if ("payload".equals(name)) {
+                    payload = readPayload(parser, input, token, true);
+                } else if ("parameters".equals(name)) {
+                    Object value = readValue(parser, token);
+                    if (value instanceof Map) {
+                        parameters = (Map) value;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        Data<Object> data = new Data<>(discriminator, payload);
+        if (parameters != null) {
+            data.setParameters(parameters);
+        }
+        return data;
+    }
+
+    private static Object readPayload(JsonParser parser, String input, JsonToken token, boolean top)
+            throws IOException {
+        if (token == JsonToken.START_OBJECT) {
+            return readDocument(parser, input);
+        }
+        if (token == JsonToken.START_ARRAY && top) {
+            // a batch
+            List<Object> documents = new ArrayList<>();
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                documents.add(readPayload(parser, input, token, false));
+            }
+            return documents;
+        }
+        return readValue(parser, token);
+    }
+
+    private static LifDocument readDocument(JsonParser parser, String input) throws IOException {
+        Object context = null;
+        Map metadata = null;
+        String text = null;
+        String language = null;
+        List<String> views = new ArrayList<>();
+        List<Map> viewMetadata = new ArrayList<>();
+        List<String> viewIds = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("@context".equals(name)) {
+                context = readValue(parser, token);
+            } else if ("metadata".equals(name)) {
+                Object value = readValue(parser, token);
+                if (value instanceof Map) {
+                    metadata = (Map) value;
+                }
+            } else if ("text".equals(name)) {
+                if (token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("@value".equals(field)) {
+                            text = parser.getValueAsString();
+                        } else if ("@language".equals(field)) {
+                            language = parser.getValueAsString();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    text = parser.getValueAsString();
+                }
+            } else if ("views".equals(name) && token == JsonToken.START_ARRAY) {
+                while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                    readView(parser, input, views, viewMetadata, viewIds);
+                }
+                expect(parser, token, JsonToken.END_ARRAY);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new LifDocument(context, metadata, text, language, views, viewMetadata, viewIds);
+    }
+
+    // Keeps the JSON of the view, reading only its id and metadata.
+    private static void readView(JsonParser parser, String input, List<String> views, List<Map> viewMetadata,
+                                 List<String> viewIds) throws IOException {
+        int start = (int) parser.getTokenLocation().getCharOffset();
+        Map metadata = null;
+        String id = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("metadata".equals(name)) {
+                Object value = readValue(parser, token);
+                if (value instanceof Map) {
+                    metadata = (Map) value;
+                }
+            } else if ("id".equals(name) && token == JsonToken.VALUE_STRING) {
+                id = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        int end = (int) parser.getCurrentLocation().getCharOffset();
+        views.add(input.substring(start, end));
+        viewMetadata.add(metadata);
+        viewIds.add(id);
+    }
+
+    // Reads a value into maps, lists, strings, numbers and booleans, as
+    // Serializer.parse would.
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    map.put(name, readValue(parser, parser.nextToken()));
+                }
+                return map;
+            case START_ARRAY:
+                List<Object> list = new ArrayList<>();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    list.add(readValue(parser, token));
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException(parser, "Unexpected " + token);
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken token, JsonToken expected) throws IOException {
+        if (token != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but found " + token);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.lappsgrid.mallet;
+
+import org.lappsgrid.serialization.Serializer;
+import org.lappsgrid.serialization.lif.Annotation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes a LIF response as compact JSON, one annotation at a time, instead of
+ * building a DataContainer and serializing it with <code>asPrettyJson</code>.
+ * <p>
+ * The parts of the input that are passed through are written as they are:
+ * the views of the input document as they were sent (see {@link LifReader}),
+ * its metadata and the parameters with the Serializer. The views the service produces are written as
+ * their annotations are produced. Calls must follow the structure of the
+ * document:
+ * <pre>
+ * startData(discriminator)
+ *   [startBatch()]
+ *     startContainer(document)
+ *       startView([id]) [contains(...)] [metadata(...)] annotation(...)* endView()
+ *     endContainer()
+ *   [endBatch()]
+ * endData(parameters)
+ * </pre>
+ */
+final class LifWriter {
+    /** The request parameter that asks for compact output. */
+    static final String COMPACT = "compact";
+
+    private final Writer out;
+    // separates the elements of the array or object we are in
+    private boolean first;
+    // metadata of the current view, written with its first annotation
+    private Map<String, Object> viewMetadata;
+    private Map<String, Object> contains;
+
+    LifWriter(Writer out) {
+        this.out = out;
+    }
+
+    void startData(String discriminator) throws IOException {
+        out.write("{\"discriminator\":");
+        string(discriminator);
+        out.write(",\"payload\":");
+        first = true;
+    }
+
+    void startBatch() throws IOException {
+        out.write('[');
+        first = true;
+    }
+
+    void endBatch() throws IOException {
+        out.write(']');
+        first = false;
+    }
+
+    /**
+     * Starts a container with the text and metadata of the document, and
+     * writes its views as they were sent. New views can then be added.
+     */
+    void startContainer(LifDocument document) throws IOException {
+        separator();
+        out.write("{\"@context\":\"http://vocab.lappsgrid.org/context-1.0.0.jsonld\",\"metadata\":");
+        Map metadata = document.getMetadata();
+        raw(metadata == null ? new LinkedHashMap() : metadata);
+        out.write(",\"text\":{");
+        if (document.getText() != null) {
+            out.write("\"@value\":");
+            string(document.getText());
+            if (document.getLanguage() != null) {
+                out.write(",\"@language\":");
+                string(document.getLanguage());
+            }
+        }
+        out.write('}');
+        out.write(",\"views\":[");
+        first = true;
+        for (int i = 0; i < document.getViewCount(); i++) {
+            separator();
+            out.write(document.getRawView(i));
+        }
+    }
+
+    void endContainer() throws IOException {
+        out.write("]}");
+        first = false;
+    }
+
+    void startView() throws IOException {
+        startView(null);
+    }
+
+    /**
+     * Starts a view with the given id, or without one if it is null.
+     */
+    void startView(String id) throws IOException {
+        separator();
+        out.write('{');
+        if (id != null) {
+            out.write("\"id\":");
+            string(id);
+            out.write(',');
+        }
+        viewMetadata = new LinkedHashMap<>();
+        contains = new LinkedHashMap<>();
+        viewMetadata.put("contains", contains);
+    }
+
+    /**
+     * Records that the view contains annotations of a type, like
+     * View.addContains.
+     */
+    void contains(String name, String producer, String type) {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("producer", producer);
+        info.put("type", type);
+        contains.put(name, info);
+    }
+
+    void metadata(String key, Object value) {
+        viewMetadata.put(key, value);
+    }
+
+    /**
+     * Writes an annotation with an id and features, given as name/value
+     * pairs.
+     */
+    void annotation(String id, String... features) throws IOException {
+        startAnnotations();
+        separator();
+        out.write("{\"id\":");
+        string(id);
+        out.write(",\"features\":{");
+        for (int i = 0; i < features.length; i += 2) {
+            if (i > 0) {
+                out.write(',');
+            }
+            string(features[i]);
+            out.write(':');
+            string(features[i + 1]);
+        }
+        out.write("}}");
+    }
+
+    /**
+     * Writes an existing annotation as it is.
+     */
+    void annotation(Annotation annotation) throws IOException {
+        startAnnotations();
+        separator();
+        raw(annotation);
+    }
+
+    void endView() throws IOException {
+        startAnnotations();
+        out.write("]}");
+        first = false;
+    }
+
+    void endData(Map parameters) throws IOException {
+        out.write(",\"parameters\":");
+        raw(parameters == null ? new LinkedHashMap() : parameters);
+        out.write('}');
+        out.flush();
+    }
+
+    // the view metadata is complete once the first annotation is written
+    private void startAnnotations() throws IOException {
+        if (viewMetadata == null) {
+            return;
+        }
+        out.write("\"metadata\":");
+        raw(viewMetadata);
+        out.write(",\"annotations\":[");
+        viewMetadata = null;
+        contains = null;
+        first = true;
+    }
+
+    private void separator() throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        first = false;
+    }
+
+    private void raw(Object value) throws IOException {
+        out.write(Serializer.toJson(value));
+    }
+
+    private void string(String s) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.write(s, start, i - start);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+        out.write(s, start, s.length() - start);
+        out.write('"');
+    }
+}
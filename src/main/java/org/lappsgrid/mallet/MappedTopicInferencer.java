@@ -0,0 +1,147 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.util.Randoms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A TopicInferencer that samples directly against the type/topic counts of a
+ * {@link BinaryModelFormat} file mapped into memory, rather than against a
+ * copy of the counts on the heap.
+ * <p>
+ * Opening a mapped inferencer only reads the header and the alphabet, and
+ * every JVM on the host that maps the same file shares the same page cache
+ * pages. Model files should be replaced by moving a new file into place
+ * (as {@link BinaryModelFormat#convert} does) rather than overwritten.
+ * <p>
+ * Unlike Mallet's TopicInferencer, all sampling state is local to each call
+ * so one instance can be used by many threads at once. For the same reason
+ * the random seed is given to each call rather than set on the instance.
+ */
+public class MappedTopicInferencer extends TopicInferencer {
+    private static final long serialVersionUID = 1L;
+
+    private final int numTopics;
+    private final Alphabet alphabet;
+    private final transient TopicSampler sampler;
+
+    private MappedTopicInferencer(int[] tokensPerTopic, Alphabet alphabet, double[] alpha,
+                                  double beta, double betaSum, IntBuffer offsets, IntBuffer counts) {
+        super(new int[0][], tokensPerTopic, alphabet, alpha, beta, betaSum);
+        this.numTopics = tokensPerTopic.length;
+        this.alphabet = alphabet;
+        this.sampler = new TopicSampler(tokensPerTopic, alpha, beta, betaSum,
+                TopicSampler.mapped(offsets, counts));
+    }
+
+    /**
+     * Maps a TopicInferencer stored in the binary model format.
+     */
+    public static MappedTopicInferencer open(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Model file is too large to map: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        byte[] magic = new byte[BinaryModelFormat.MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, BinaryModelFormat.MAGIC)
+                || buffer.getInt() != BinaryModelFormat.VERSION
+                || buffer.getInt() != BinaryModelFormat.TOPIC_INFERENCER) {
+            throw new StreamCorruptedException("Not a binary TopicInferencer: " + file);
+        }
+        int numTopics = buffer.getInt();
+        int numTypes = buffer.getInt();
+        double beta = buffer.getDouble();
+        double betaSum = buffer.getDouble();
+        double[] alpha = new double[numTopics];
+        buffer.asDoubleBuffer().get(alpha);
+        buffer.position(buffer.position() + numTopics * 8);
+        int[] tokensPerTopic = new int[numTopics];
+        buffer.asIntBuffer().get(tokensPerTopic);
+        buffer.position(buffer.position() + numTopics * 4);
+
+        // the offsets and counts stay in the mapped file
+        IntBuffer offsets = slice(buffer, numTypes + 1);
+        IntBuffer counts = slice(buffer, offsets.get(numTypes));
+
+        boolean growthStopped = buffer.get() != 0;
+        int size = buffer.getInt();
+        Alphabet alphabet = new Alphabet(size);
+        for (int i = 0; i < size; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            alphabet.lookupIndex(new String(bytes, StandardCharsets.UTF_8));
+        }
+        if (growthStopped) {
+            alphabet.stopGrowth();
+        }
+        return new MappedTopicInferencer(tokensPerTopic, alphabet, alpha, beta, betaSum,
+                offsets, counts);
+    }
+
+    private static IntBuffer slice(ByteBuffer buffer, int ints) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(ints * 4);
+        buffer.position(buffer.position() + ints * 4);
+        return slice.asIntBuffer();
+    }
+
+    public Alphabet getAlphabet() {
+        return alphabet;
+    }
+
+    public int getNumTopics() {
+        return numTopics;
+    }
+
+    /**
+     * Not supported: instances are shared through the {@link ModelCache}, so
+     * a seed set by one caller would apply to every other. Pass the seed to
+     * {@link #getSampledDistribution(Instance, int, int, int, int)} instead.
+     */
+    @Override
+    public void setRandomSeed(int seed) {
+        throw new UnsupportedOperationException(
+                "The seed of a shared inferencer is given to getSampledDistribution");
+    }
+
+    TopicSampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Same algorithm as TopicInferencer.getSampledDistribution, reading the
+     * type/topic counts from the mapped file.
+     */
+    @Override
+    public double[] getSampledDistribution(Instance instance, int numIterations,
+                                           int thinning, int burnIn) {
+        return sampler.sample((FeatureSequence) instance.getData(), new Randoms(), numIterations, thinning, burnIn);
+    }
+
+    /**
+     * Samples with a new random number generator with the given seed, so the
+     * result does not depend on other callers.
+     */
+    public double[] getSampledDistribution(Instance instance, int numIterations,
+                                           int thinning, int burnIn, int seed) {
+        return sampler.sample((FeatureSequence) instance.getData(), new Randoms(seed), numIterations, thinning, burnIn);
+    }
+}
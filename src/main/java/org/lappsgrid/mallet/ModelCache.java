@@ -0,0 +1,533 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.classify.Classifier;
+import cc.mallet.fst.CRF;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process wide cache of the deserialized Mallet models (Classifier,
+ * TopicInferencer and CRF objects) used by the inference services, keyed by
+ * the URL the model was loaded from. Models may be Java serialized or in the
+ * {@link BinaryModelFormat}, and either may be compressed (see
+ * {@link ModelCompression}).
+ * <p>
+ * Models are evicted in least recently used order once either the number of
+ * cached models or their total size exceeds the configured budget. The size
+ * of a model is an estimate of the heap it retains (see
+ * {@link ModelFootprint}); a model that is larger than the whole budget is
+ * refused. The budget can be set with the <code>mallet.cache.maxModels</code>
+ * and <code>mallet.cache.maxBytes</code> system properties, or changed at
+ * runtime through JMX, where the size of each cached model is also shown.
+ * <p>
+ * A background thread checks the cached models every
+ * <code>mallet.cache.reloadSeconds</code> seconds (30 by default, 0 disables
+ * reloading) and reloads the ones whose files have changed. The new model is
+ * swapped in once it has been fully loaded; requests already running keep
+ * using the old one.
+ * <p>
+ * TopicInferencers in the binary model format can also be memory mapped
+ * rather than read onto the heap, see {@link #getMapped(URL)}.
+ * <p>
+ * Topic models are cached as an inferencer together with its parsed topic
+ * keys, see {@link #getTopicModel(URL, URL, boolean)}. The pair is reloaded
+ * when either file changes.
+ * <p>
+ * Models at remote URLs are read from a local copy, see {@link ModelMirror}.
+ * <p>
+ * Concurrent requests for a model that is not cached yet share a single load;
+ * only the first one deserializes the model and the others wait for it.
+ */
+public class ModelCache implements ModelCacheMXBean {
+    public static final String MAX_MODELS = "mallet.cache.maxModels";
+    public static final String MAX_BYTES = "mallet.cache.maxBytes";
+    public static final String RELOAD_SECONDS = "mallet.cache.reloadSeconds";
+
+    private static final ModelCache instance = new ModelCache(
+            Long.getLong(MAX_MODELS, 16),
+            Long.getLong(MAX_BYTES, 512L * 1024 * 1024));
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance,
+                    new ObjectName("org.lappsgrid.mallet:type=ModelCache"));
+        } catch (JMException e) {
+            // Most likely another copy of the webapp already registered one.
+            e.printStackTrace();
+        }
+        long reloadSeconds = Long.getLong(RELOAD_SECONDS, 30);
+        if (reloadSeconds > 0) {
+            instance.startReloading(reloadSeconds);
+        }
+    }
+
+    public static ModelCache getInstance() {
+        return instance;
+    }
+
+    // access ordered, so iteration starts with the least recently used model
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxModels;
+    private long maxBytes;
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong sharedLoads = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    // models currently being loaded, keyed like the entries
+    private final ConcurrentHashMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<>();
+
+    public ModelCache(long maxModels, long maxBytes) {
+        this.maxModels = maxModels;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the model stored at the given URL, deserializing it if it is not
+     * already cached.
+     *
+     * @throws InvalidClassException if the URL does not contain a model of the
+     *                               requested type.
+     */
+    public <T> T get(URL url, Class<T> type) throws IOException, ClassNotFoundException {
+        return get(url, type, false);
+    }
+
+    /**
+     * Returns a {@link MappedTopicInferencer} for the binary TopicInferencer
+     * file at the given <code>file:</code> URL.
+     */
+    public TopicInferencer getMapped(URL url) throws IOException, ClassNotFoundException {
+        return get(url, TopicInferencer.class, true);
+    }
+
+    /**
+     * Returns the inferencer at the given URL paired with the topic keys at
+     * the keys URL. The keys are only parsed when the pair is loaded.
+     *
+     * @throws InvalidObjectException if the inferencer and the keys file do
+     *                                not have the same number of topics.
+     */
+    public TopicModel getTopicModel(URL inferencerUrl, URL keysUrl, boolean mapped)
+            throws IOException, ClassNotFoundException {
+        return get(inferencerUrl, keysUrl, TopicModel.class, mapped);
+    }
+
+    private <T> T get(URL url, Class<T> type, boolean mapped) throws IOException, ClassNotFoundException {
+        return get(url, null, type, mapped);
+    }
+
+    /**
+     * Returns true if the model at the URL is cached. The keys URL is null
+     * for anything but a topic model.
+     */
+    synchronized boolean contains(URL url, URL keys, boolean mapped) {
+        return entries.containsKey(key(url, keys, mapped));
+    }
+
+    private static String key(URL url, URL keys, boolean mapped) {
+        String key = mapped ? "mapped:" + url.toExternalForm() : url.toExternalForm();
+        if (keys != null) {
+            key = "topics:" + key + " " + keys.toExternalForm();
+        }
+        return key;
+    }
+
+    private <T> T get(URL url, URL keys, Class<T> type, boolean mapped)
+            throws IOException, ClassNotFoundException {
+        String key = key(url, keys, mapped);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null) {
+                entry.hits++;
+            }
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            entry = loadOnce(key, url, keys, mapped);
+        }
+        Object model = entry.model;
+        if (!type.isInstance(model)) {
+            throw new InvalidClassException(model.getClass().getName(),
+                    "Expected a " + type.getName());
+        }
+        return type.cast(model);
+    }
+
+    // Only the first thread to ask for a model loads it. Everyone else asking
+    // for the same URL in the meantime waits for that load to finish.
+    private Entry loadOnce(String key, final URL url, final URL keys, final boolean mapped)
+            throws IOException, ClassNotFoundException {
+        FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            public Entry call() throws Exception {
+                return load(url, keys, mapped, false, false);
+            }
+        });
+        FutureTask<Entry> running = loading.putIfAbsent(key, task);
+        if (running != null) {
+            sharedLoads.incrementAndGet();
+            return await(running);
+        }
+        try {
+            // another thread may have finished loading between our cache lookup
+            // and registering the task
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry != null) {
+                    entry.hits++;
+                }
+            }
+            if (entry != null) {
+                hits.incrementAndGet();
+                task.cancel(false);
+                return entry;
+            }
+            misses.incrementAndGet();
+            task.run();
+            entry = await(task);
+            put(key, entry);
+            return entry;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    private static Entry await(FutureTask<Entry> task) throws IOException, ClassNotFoundException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the model to load");
+        } catch (CancellationException e) {
+            throw new IOException("Model load was abandoned", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Entry load(URL url, URL keys, boolean mapped, boolean refresh, boolean refreshKeys)
+            throws IOException, ClassNotFoundException {
+        // Read the versions first; if a file changes while we are loading it
+        // the next check will simply load it again.
+        Source source = source(url, refresh);
+        Source keysSource = keys == null ? null : source(keys, refreshKeys);
+        Entry entry = load(url, source, mapped);
+        if (keys == null) {
+            admit(entry);
+            return entry;
+        }
+        if (!(entry.model instanceof TopicInferencer)) {
+            throw new InvalidClassException(entry.model.getClass().getName(),
+                    "Expected a " + TopicInferencer.class.getName());
+        }
+        TopicModel model = new TopicModel((TopicInferencer) entry.model, TopicModel.readKeys(keysSource.url));
+        Entry pair = new Entry(url, model, entry.bytes + ModelFootprint.estimate(model.getKeys()),
+                source.version, mapped);
+        pair.keys = keys;
+        pair.keysVersion = keysSource.version;
+        admit(pair);
+        return pair;
+    }
+
+    // Remote files are read from the local mirror, which is only refreshed
+    // when the remote file has changed.
+    private Source source(URL url, boolean refresh) throws IOException {
+        ModelMirror mirror = ModelMirror.getInstance();
+        if (mirror != null && ModelMirror.handles(url)) {
+            ModelMirror.Copy copy = refresh ? mirror.fetch(url) : mirror.get(url);
+            return new Source(copy.file.toURI().toURL(), copy.version);
+        }
+        return new Source(url, ModelSource.version(url));
+    }
+
+    private Entry load(URL url, Source source, boolean mapped) throws IOException, ClassNotFoundException {
+        if (mapped) {
+            MappedTopicInferencer inferencer = MappedTopicInferencer.open(ModelSource.toFile(source.url));
+            return new Entry(url, inferencer, ModelFootprint.estimate(inferencer), source.version, true);
+        }
+        // Compressed models are decompressed on the fly.
+        Object model;
+        try (InputStream in = new BufferedInputStream(
+                ModelCompression.decompress(source.url.openStream()), 64 * 1024)) {
+            if (BinaryModelFormat.isBinary(in)) {
+                model = BinaryModelFormat.read(in);
+            } else {
+                model = new ObjectInputStream(in).readObject();
+            }
+        }
+
+        // The model is shared by every request from now on, so stop its
+        // alphabet from growing with the vocabulary of the documents we see.
+        Alphabet alphabet = null;
+        if (model instanceof Classifier) {
+            alphabet = ((Classifier) model).getAlphabet();
+        } else if (model instanceof CRF) {
+            alphabet = ((CRF) model).getInputAlphabet();
+        }
+        if (alphabet != null) {
+            alphabet.stopGrowth();
+        }
+        return new Entry(url, model, ModelFootprint.estimate(model), source.version, false);
+    }
+
+    // Refuse models that could never fit in the budget, rather than evicting
+    // everything else to make room for them.
+    private void admit(Entry entry) throws IOException {
+        long budget = getMaxBytes();
+        if (entry.bytes > budget) {
+            rejections.incrementAndGet();
+            throw new ModelTooLargeException(String.format(
+                    "The model at %s needs about %d bytes, more than the model cache budget of %d bytes",
+                    entry.url, entry.bytes, budget));
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+        evict();
+    }
+
+    // Remove least recently used models until we are back within budget. The
+    // most recently added model is always kept, even if it is over budget on
+    // its own.
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > 1 && (entries.size() > maxModels || bytes > maxBytes)) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            eldest.evicted = true;
+            bytes -= eldest.bytes;
+            evictions.incrementAndGet();
+        }
+    }
+
+    void startReloading(long seconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mallet-model-reloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reload();
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reloads every cached model whose file has changed since it was loaded.
+     */
+    public void reload() {
+        List<Entry> snapshot;
+        List<String> versions = new ArrayList<>();
+        List<String> keysVersions = new ArrayList<>();
+        synchronized (this) {
+            snapshot = new ArrayList<>(entries.values());
+            for (Entry entry : snapshot) {
+                versions.add(entry.version);
+                keysVersions.add(entry.keysVersion);
+            }
+        }
+        for (int i = 0; i < snapshot.size(); i++) {
+            Entry entry = snapshot.get(i);
+            try {
+                boolean changed = ModelSource.changed(entry.url, versions.get(i));
+                boolean keysChanged = entry.keys != null
+                        && ModelSource.changed(entry.keys, keysVersions.get(i));
+                if (changed || keysChanged) {
+                    swap(entry, load(entry.url, entry.keys, entry.mapped, changed, keysChanged));
+                }
+                entry.reloadFailure = null;
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                // keep serving the model we have, and only report a failure
+                // once for each change of the files, not on every poll
+                String failure = currentVersion(entry.url) + " " + currentVersion(entry.keys) + " " + e;
+                if (!failure.equals(entry.reloadFailure)) {
+                    entry.reloadFailure = failure;
+                    System.err.println("Unable to reload " + entry.url + ", keeping the model loaded before");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // the version of a file, if we can still get it
+    private static String currentVersion(URL url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            return ModelSource.version(url);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized void swap(Entry entry, Entry fresh) {
+        if (entry.evicted) {
+            return;
+        }
+        bytes += fresh.bytes - entry.bytes;
+        entry.bytes = fresh.bytes;
+        entry.version = fresh.version;
+        entry.keysVersion = fresh.keysVersion;
+        entry.model = fresh.model;
+        reloads.incrementAndGet();
+        evict();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    public long getSharedLoads() {
+        return sharedLoads.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public synchronized List<ModelUsage> getModels() {
+        List<ModelUsage> models = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            models.add(new ModelUsage(e.getKey(), entry.model.getClass().getName(), entry.bytes, entry.hits));
+        }
+        return models;
+    }
+
+    public synchronized int getModelCount() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getMaxModels() {
+        return maxModels;
+    }
+
+    public synchronized void setMaxModels(long maxModels) {
+        this.maxModels = maxModels;
+        evict();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.evicted = true;
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static class Entry {
+        final URL url;
+        final boolean mapped;
+        // the topic keys of a TopicModel entry, null for everything else
+        URL keys;
+        // replaced when the model is reloaded, the other fields are guarded by the cache
+        volatile Object model;
+        long bytes;
+        String version;
+        String keysVersion;
+        long hits;
+        boolean evicted;
+        // the last reload failure that was reported, only used by reload
+        String reloadFailure;
+
+        Entry(URL url, Object model, long bytes, String version, boolean mapped) {
+            this.url = url;
+            this.mapped = mapped;
+            this.model = model;
+            this.bytes = bytes;
+            this.version = version;
+        }
+    }
+
+    private static class Source {
+        // where the model is read from, the local copy of a mirrored URL
+        final URL url;
+        final String version;
+
+        Source(URL url, String version) {
+            this.url = url;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.lappsgrid.mallet;
+
+import java.util.List;
+
+/**
+ * Management interface for the {@link ModelCache}. Registered with the platform
+ * MBean server as <code>org.lappsgrid.mallet:type=ModelCache</code>.
+ */
+public interface ModelCacheMXBean {
+    long getHits();
+    long getMisses();
+    long getEvictions();
+    long getReloads();
+    long getSharedLoads();
+    long getRejections();
+
+    int getModelCount();
+    long getBytes();
+
+    /**
+     * The cached models with their estimated heap size, in least recently
+     * used order.
+     */
+    List<ModelUsage> getModels();
+
+    long getMaxModels();
+    void setMaxModels(long maxModels);
+
+    long getMaxBytes();
+    void setMaxBytes(long maxBytes);
+
+    void clear();
+
+    void reload();
+}
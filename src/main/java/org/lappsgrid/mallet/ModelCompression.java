@@ -0,0 +1,112 @@
+package org.lappsgrid.mallet;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional gzip or deflate (zlib) compression of model files.
+ * <p>
+ * The trainers compress the models they write when given a
+ * <code>compression</code> parameter. Readers do not need to be told: a
+ * compressed model is recognized by its first two bytes, which can never
+ * start a Java serialized or binary model.
+ */
+public final class ModelCompression {
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // Models are large and often read from network storage, so read them in
+    // big chunks.
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private ModelCompression() {
+    }
+
+    /**
+     * Returns true if the value of a <code>compression</code> parameter is
+     * null, "none", "gzip" or "deflate".
+     */
+    public static boolean isSupported(Object compression) {
+        return compression == null || NONE.equals(compression)
+                || GZIP.equals(compression) || DEFLATE.equals(compression);
+    }
+
+    /**
+     * Wraps the stream so everything written to it is compressed. Closing the
+     * returned stream finishes the compressed data and closes the stream.
+     */
+    public static OutputStream compress(OutputStream out, Object compression) throws IOException {
+        if (compression == null || NONE.equals(compression)) {
+            return out;
+        }
+        if (GZIP.equals(compression)) {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        if (DEFLATE.equals(compression)) {
+            return new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), BUFFER_SIZE);
+        }
+        throw new IllegalArgumentException("Unsupported compression: " + compression);
+    }
+
+    /**
+     * Compresses a model file in place. The compressed model is written to a
+     * temporary file first and moved into place when complete.
+     */
+    public static void compress(File file, Object compression) throws IOException {
+        if (compression == null || NONE.equals(compression)) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = compress(new FileOutputStream(temp), compression)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns a stream of the uncompressed contents of the given stream,
+     * whether or not it is compressed. The underlying stream is read through
+     * a large buffer; callers that need mark/reset should wrap the returned
+     * stream in a BufferedInputStream.
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(2);
+        int b0 = buffered.read();
+        int b1 = buffered.read();
+        buffered.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new GZIPInputStream(buffered, 64 * 1024);
+        }
+        if (isZlibHeader(b0, b1)) {
+            return new InflaterInputStream(buffered);
+        }
+        return buffered;
+    }
+
+    // RFC 1950: deflate compression with a window of at most 32K, and a check
+    // value making the first two bytes a multiple of 31
+    private static boolean isZlibHeader(int b0, int b1) {
+        return b0 >= 0 && b1 >= 0
+                && (b0 & 0x0f) == 8 && (b0 >> 4) <= 7
+                && ((b0 << 8) | b1) % 31 == 0;
+    }
+}
@@ -0,0 +1,176 @@
+package org.lappsgrid.mallet;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the heap retained by a loaded model by walking its object graph:
+ * the alphabets, the parameter arrays, the pipes and so on.
+ * <p>
+ * Sizes assume a 64 bit JVM with compressed references. The fields of
+ * Mallet's own classes are followed; JDK classes are counted by their shallow
+ * size, plus their elements for collections and maps. Memory mapped data is
+ * not on the heap and is not counted.
+ */
+final class ModelFootprint {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    // a HashMap node, or the share of a hash table slot and entry in general
+    private static final int MAP_ENTRY = 32;
+
+    private static final Map<Class<?>, Layout> layouts = new ConcurrentHashMap<>();
+
+    private ModelFootprint() {
+    }
+
+    /**
+     * Returns the approximate number of heap bytes reachable from the model.
+     */
+    static long estimate(Object model) {
+        IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<>();
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(model);
+        long bytes = 0;
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (seen.put(object, Boolean.TRUE) == null) {
+                bytes += sizeOf(object, pending);
+            }
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(Object object, ArrayDeque<Object> pending) {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            int length = Array.getLength(object);
+            Class<?> component = type.getComponentType();
+            if (component.isPrimitive()) {
+                return align(ARRAY_HEADER + (long) length * primitiveSize(component));
+            }
+            for (Object element : (Object[]) object) {
+                if (element != null) {
+                    pending.push(element);
+                }
+            }
+            return align(ARRAY_HEADER + (long) length * REFERENCE);
+        }
+        if (object instanceof String) {
+            // the String and its character array
+            return align(OBJECT_HEADER + 8 + REFERENCE) + align(ARRAY_HEADER + 2L * ((String) object).length());
+        }
+        if (object instanceof Class || object instanceof ClassLoader || object instanceof Thread) {
+            // shared with the rest of the JVM
+            return 0;
+        }
+
+        Layout layout = layout(type);
+        long size = layout.size;
+        for (Field field : layout.references) {
+            Object value;
+            try {
+                value = field.get(object);
+            } catch (IllegalAccessException e) {
+                continue;
+            }
+            if (value != null) {
+                pending.push(value);
+            }
+        }
+        if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            size += (long) map.size() * MAP_ENTRY;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                push(entry.getKey(), pending);
+                push(entry.getValue(), pending);
+            }
+        } else if (object instanceof Collection) {
+            Collection<?> collection = (Collection<?>) object;
+            size += align(ARRAY_HEADER + (long) collection.size() * REFERENCE);
+            for (Object element : collection) {
+                push(element, pending);
+            }
+        }
+        return size;
+    }
+
+    private static void push(Object object, ArrayDeque<Object> pending) {
+        if (object != null) {
+            pending.push(object);
+        }
+    }
+
+    private static Layout layout(Class<?> type) {
+        Layout layout = layouts.get(type);
+        if (layout == null) {
+            layout = new Layout(type);
+            layouts.put(type, layout);
+        }
+        return layout;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static boolean isJdkClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.")
+                || name.startsWith("sun.") || name.startsWith("jdk.");
+    }
+
+    // The shallow size of a class, and the reference fields we can follow.
+    private static class Layout {
+        final long size;
+        final List<Field> references = new ArrayList<>();
+
+        Layout(Class<?> type) {
+            long fields = 0;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                boolean follow = !isJdkClass(c);
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    Class<?> fieldType = field.getType();
+                    if (fieldType.isPrimitive()) {
+                        fields += primitiveSize(fieldType);
+                        continue;
+                    }
+                    fields += REFERENCE;
+                    if (follow) {
+                        try {
+                            field.setAccessible(true);
+                            references.add(field);
+                        } catch (RuntimeException e) {
+                            // not accessible, count the reference only
+                        }
+                    }
+                }
+            }
+            size = align(OBJECT_HEADER + fields);
+        }
+    }
+}
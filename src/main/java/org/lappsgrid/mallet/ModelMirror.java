@@ -0,0 +1,324 @@
+package org.lappsgrid.mallet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local, content-addressed copy of the models and topic keys files that
+ * the services load from remote (<code>http:</code>, <code>https:</code> and
+ * <code>ftp:</code>) URLs.
+ * <p>
+ * The first time a URL is loaded its contents are streamed into the mirror
+ * directory and stored under their SHA-256 checksum, with a small index file
+ * recording which checksum the URL resolved to and the version of the remote
+ * file (see {@link ModelSource}). Later loads, including loads after a
+ * restart, read the local copy.
+ * <p>
+ * The servers publish no checksum of their own, so a download is only
+ * checked against the length the server announced. The checksum taken while
+ * downloading is what later guards the local copy: the first time a copy is
+ * used by the process it is hashed again, and a copy that no longer matches
+ * (one damaged or changed on disk) is fetched again. This is an integrity
+ * check of the local copy only, and says nothing about whether the server
+ * sent the right file.
+ * <p>
+ * The mirror directory is set with the <code>mallet.mirror.dir</code> system
+ * property and defaults to <code>.mallet/models</code> in the home directory
+ * of the user running the services. An empty value disables the mirror. The
+ * directory may be deleted at any time.
+ * <p>
+ * The copies are deserialized, so whoever can write to the mirror can run
+ * code in the services. The directory is created readable and writable by
+ * its owner only, and a directory that belongs to another user, or that
+ * other users can write to, is refused. Files are written to the directory
+ * readable and writable by their owner only as well.
+ */
+final class ModelMirror {
+    static final String DIRECTORY = "mallet.mirror.dir";
+
+    private static final int TIMEOUT = 10000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private static final ModelMirror instance = create();
+
+    private static ModelMirror create() {
+        String dir = System.getProperty(DIRECTORY,
+                new File(System.getProperty("user.home"), ".mallet" + File.separator + "models").getPath());
+        return dir.isEmpty() ? null : new ModelMirror(new File(dir));
+    }
+
+    /**
+     * Returns the process wide mirror, or null if mirroring is disabled.
+     */
+    static ModelMirror getInstance() {
+        return instance;
+    }
+
+    /**
+     * A local copy of a remote file.
+     */
+    static final class Copy {
+        final File file;
+        final String version;
+
+        Copy(File file, String version) {
+            this.file = file;
+            this.version = version;
+        }
+    }
+
+    private final File directory;
+    // checksums of the copies checked since the process started
+    private final Set<String> intact = ConcurrentHashMap.newKeySet();
+    // set once the directory is known to be ours alone
+    private volatile boolean secured;
+
+    ModelMirror(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns true if the URL is fetched over the network and should be
+     * mirrored.
+     */
+    static boolean handles(URL url) {
+        String protocol = url.getProtocol();
+        return "http".equals(protocol) || "https".equals(protocol) || "ftp".equals(protocol);
+    }
+
+    /**
+     * Returns the local copy of the URL, fetching it if there is no intact
+     * copy yet.
+     */
+    Copy get(URL url) throws IOException {
+        secureDirectory();
+        Properties index = readIndex(url);
+        if (index != null) {
+            String checksum = index.getProperty("sha256");
+            File file = object(checksum);
+            if (isIntact(file, checksum)) {
+                return new Copy(file, index.getProperty("version"));
+            }
+        }
+        return fetch(url);
+    }
+
+    /**
+     * Downloads the URL again, replacing the local copy.
+     */
+    Copy fetch(URL url) throws IOException {
+        secureDirectory();
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        if (connection instanceof HttpURLConnection) {
+            int status = ((HttpURLConnection) connection).getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unable to fetch " + url + ": HTTP " + status);
+            }
+        }
+        String version = connection instanceof HttpURLConnection
+                ? ModelSource.version((HttpURLConnection) connection) : null;
+        long expectedLength = connection.getContentLengthLong();
+
+        // Stream into a temporary file, computing the checksum of the copy on the way.
+        File temp = createTempFile("fetch");
+        MessageDigest digest = sha256();
+        long length = 0;
+        try {
+            try (InputStream in = new DigestInputStream(connection.getInputStream(), digest);
+                 OutputStream out = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                    length += n;
+                }
+            }
+            if (expectedLength >= 0 && length != expectedLength) {
+                throw new IOException("Incomplete download of " + url + ": expected "
+                        + expectedLength + " bytes, got " + length);
+            }
+            String checksum = hex(digest.digest());
+            File file = object(checksum);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            intact.add(checksum);
+
+            Properties index = new Properties();
+            index.setProperty("url", url.toExternalForm());
+            index.setProperty("sha256", checksum);
+            if (version != null) {
+                index.setProperty("version", version);
+            }
+            writeIndex(url, index);
+            return new Copy(file, version);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Creates the mirror directory for the current user only, or checks that
+     * an existing one belongs to the current user and nobody else can write
+     * to it.
+     *
+     * @throws IOException if the directory cannot be created or is refused
+     */
+    private void secureDirectory() throws IOException {
+        if (secured) {
+            return;
+        }
+        Path path = directory.toPath();
+        boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                if (posix) {
+                    Files.createDirectories(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } else {
+                    Files.createDirectories(path);
+                }
+            } catch (IOException e) {
+                throw new IOException("Unable to create the model mirror " + directory, e);
+            }
+        }
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("The model mirror " + directory + " is not a directory");
+        }
+        UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!owner.equals(user)) {
+            throw new IOException("Refusing to use the model mirror " + directory
+                    + ", it belongs to " + owner.getName());
+        }
+        if (posix) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException("Refusing to use the model mirror " + directory
+                        + ", other users can write to it");
+            }
+        }
+        secured = true;
+    }
+
+    /**
+     * Returns true if the local copy still has the checksum it was stored
+     * under.
+     */
+    private boolean isIntact(File file, String checksum) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        if (intact.contains(checksum)) {
+            return true;
+        }
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) >= 0) {
+                // just computing the checksum
+            }
+        }
+        String actual = hex(digest.digest());
+        if (!checksum.equals(actual)) {
+            // there is no exception to show, so say what did not match
+            System.err.println("The mirrored model " + file + " changed on disk, fetching it again: expected SHA-256 "
+                    + checksum + ", found " + actual);
+            return false;
+        }
+        intact.add(checksum);
+        return true;
+    }
+
+    private File object(String checksum) {
+        return new File(directory, checksum + ".model");
+    }
+
+    private File indexFile(URL url) {
+        byte[] hash = sha256().digest(url.toExternalForm().getBytes(StandardCharsets.UTF_8));
+        return new File(directory, hex(hash) + ".url");
+    }
+
+    private Properties readIndex(URL url) throws IOException {
+        File file = indexFile(url);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties index = new Properties();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            index.load(reader);
+        }
+        // guard against a (very unlikely) hash collision between URLs
+        if (!url.toExternalForm().equals(index.getProperty("url")) || index.getProperty("sha256") == null) {
+            return null;
+        }
+        return index;
+    }
+
+    private void writeIndex(URL url, Properties index) throws IOException {
+        File file = indexFile(url);
+        File temp = createTempFile("index");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                index.store(writer, null);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    // File.createTempFile leaves the permissions to the umask.
+    private File createTempFile(String prefix) throws IOException {
+        Path path = directory.toPath();
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(path, prefix, ".tmp",
+                    PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE)).toFile();
+        }
+        return Files.createTempFile(path, prefix, ".tmp").toFile();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
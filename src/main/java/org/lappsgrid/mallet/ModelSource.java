@@ -0,0 +1,109 @@
+package org.lappsgrid.mallet;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * Tracks the version of the file behind a model URL so the {@link ModelCache}
+ * can tell when a model has been replaced.
+ * <p>
+ * Versions of <code>file:</code> URLs are the modification time and size of
+ * the file. Versions of <code>http:</code> and <code>https:</code> URLs are
+ * the ETag and Last-Modified headers, and are revalidated with a conditional
+ * HEAD request. Any other URL (e.g. a model inside the webapp's jar) is not
+ * tracked.
+ */
+final class ModelSource {
+    private static final int TIMEOUT = 10000;
+
+    private ModelSource() {
+    }
+
+    /**
+     * Returns the current version of the URL, or null if the URL can not be
+     * tracked.
+     */
+    static String version(URL url) throws IOException {
+        String protocol = url.getProtocol();
+        if ("file".equals(protocol)) {
+            File file = toFile(url);
+            return file.lastModified() + "/" + file.length();
+        }
+        if ("http".equals(protocol) || "https".equals(protocol)) {
+            HttpURLConnection connection = head(url);
+            try {
+                return version(connection);
+            } finally {
+                connection.disconnect();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the URL no longer has the given version.
+     */
+    static boolean changed(URL url, String version) throws IOException {
+        if (version == null) {
+            return false;
+        }
+        if (!url.getProtocol().startsWith("http")) {
+            return !version.equals(version(url));
+        }
+
+        // Let the server tell us if the model is still current.
+        HttpURLConnection connection = head(url);
+        try {
+            // the ETag may itself contain a slash, the timestamp never does
+            int slash = version.lastIndexOf('/');
+            String etag = version.substring(0, slash);
+            if (!etag.isEmpty()) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            long lastModified = Long.parseLong(version.substring(slash + 1));
+            if (lastModified > 0) {
+                connection.setIfModifiedSince(lastModified);
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unable to revalidate " + url + ": HTTP " + status);
+            }
+            return !version.equals(version(connection));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection head(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("HEAD");
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        return connection;
+    }
+
+    // Servers that send neither an ETag nor a Last-Modified header can not be
+    // revalidated.
+    static String version(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        long lastModified = connection.getLastModified();
+        if (etag == null && lastModified == 0) {
+            return null;
+        }
+        return (etag == null ? "" : etag) + "/" + lastModified;
+    }
+
+    static File toFile(URL url) throws IOException {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Not a file URL: " + url, e);
+        }
+    }
+}
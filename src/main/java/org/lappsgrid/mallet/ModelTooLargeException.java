@@ -0,0 +1,13 @@
+package org.lappsgrid.mallet;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the {@link ModelCache} when a model's estimated heap size is
+ * larger than the whole cache budget.
+ */
+public class ModelTooLargeException extends IOException {
+    public ModelTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,41 @@
+package org.lappsgrid.mallet;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The heap used by one cached model, as reported by {@link ModelCacheMXBean#getModels()}.
+ */
+public class ModelUsage {
+    private final String key;
+    private final String type;
+    private final long bytes;
+    private final long hits;
+
+    @ConstructorProperties({"key", "type", "bytes", "hits"})
+    public ModelUsage(String key, String type, long bytes, long hits) {
+        this.key = key;
+        this.type = type;
+        this.bytes = bytes;
+        this.hits = hits;
+    }
+
+    /** The URL the model was loaded from, prefixed for mapped and topic models. */
+    public String getKey() {
+        return key;
+    }
+
+    /** The class of the cached model. */
+    public String getType() {
+        return type;
+    }
+
+    /** The estimated number of heap bytes retained by the model. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** The number of requests served from the cached model. */
+    public long getHits() {
+        return hits;
+    }
+}
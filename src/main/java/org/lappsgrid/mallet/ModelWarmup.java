@@ -0,0 +1,127 @@
+package org.lappsgrid.mallet;
+
+import org.lappsgrid.api.ProcessingService;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.DataContainer;
+import org.lappsgrid.serialization.Serializer;
+import org.lappsgrid.serialization.lif.Annotation;
+import org.lappsgrid.serialization.lif.Container;
+import org.lappsgrid.serialization.lif.View;
+import org.lappsgrid.vocabulary.Features;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Loads the default models used by the DocumentClassification, TopicModeling
+ * and SequenceTagging services into the {@link ModelCache} when the webapp
+ * starts, and runs a few synthetic documents through each of them so the
+ * first real requests do not pay for deserialization and JIT warm-up.
+ * The synthetic documents are left out of the stage timings and the result
+ * cache.
+ * <p>
+ * The servlet container does not start serving requests until this listener
+ * returns. The number of warm-up rounds can be set with the
+ * <code>mallet.warmup.iterations</code> context parameter; 0 disables it.
+ */
+public class ModelWarmup implements ServletContextListener {
+    public static final String ITERATIONS = "mallet.warmup.iterations";
+
+    private static final String TEXT =
+            "Research scientists are the primary audience for the journal, but summaries and " +
+            "accompanying articles are intended to make many of the most important papers " +
+            "understandable to scientists in other fields and the educated public.";
+
+    private static final String[] TOKENS = {
+            "The", "committee", "will", "meet", "again", "next", "week", "."
+    };
+
+    public void contextInitialized(ServletContextEvent event) {
+        int iterations = 3;
+        String value = event.getServletContext().getInitParameter(ITERATIONS);
+        if (value != null) {
+            iterations = Integer.parseInt(value.trim());
+        }
+        long start = System.currentTimeMillis();
+        warmUp(iterations);
+        event.getServletContext().log(String.format("Mallet models warmed up in %d ms",
+                System.currentTimeMillis() - start));
+    }
+
+    public void contextDestroyed(ServletContextEvent event) {
+    }
+
+    /**
+     * Runs the given number of synthetic documents through each inference
+     * service using its default model. Services whose default model is not
+     * installed are skipped.
+     */
+    public static void warmUp(int iterations) {
+        String text = new Data<>(Discriminators.Uri.TEXT, TEXT).asJson();
+        String tokens = tokens().asJson();
+        boolean classification = installed(DocumentClassification.class, "/masc_500k_texts.classifier");
+        boolean topics = installed(TopicModeling.class, "/masc_500k_texts.inferencer");
+        boolean tagging = installed(SequenceTagging.class, "/masc_500k_texts.model");
+        for (int i = 0; i < iterations; i++) {
+            if (classification) {
+                run(new DocumentClassification(), text);
+            }
+            if (topics) {
+                run(new TopicModeling(), text);
+            }
+            if (tagging) {
+                run(new SequenceTagging(), tokens);
+            }
+        }
+        // the timings and cached results should only reflect real requests
+        if (iterations > 0) {
+            StageTimers.forService(DocumentClassification.class).reset();
+            StageTimers.forService(TopicModeling.class).reset();
+            StageTimers.forService(SequenceTagging.class).reset();
+            ResultCache.getInstance().reset();
+        }
+    }
+
+    // Not every deployment packages every default model, and callers of such
+    // a service name their own model, so this is worth a line but no more.
+    private static boolean installed(Class<?> service, String model) {
+        if (service.getResource(model) != null) {
+            return true;
+        }
+        System.err.println("Not warming up " + service.getName() + ": default model " + model + " is not installed");
+        return false;
+    }
+
+    // A service that cannot be warmed up is reported, but must not stop the
+    // webapp from starting; it will report the same error to its callers.
+    private static void run(ProcessingService service, String input) {
+        try {
+            Data result = Serializer.parse(service.execute(input), Data.class);
+            if (Discriminators.Uri.ERROR.equals(result.getDiscriminator())) {
+                System.err.println("Unable to warm up " + service.getClass().getName() +
+                        ": " + result.getPayload());
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Unable to warm up " + service.getClass().getName());
+            e.printStackTrace();
+        }
+    }
+
+    private static Data tokens() {
+        Container container = new Container();
+        StringBuilder text = new StringBuilder();
+        View view = container.newView();
+        for (int i = 0; i < TOKENS.length; i++) {
+            int start = text.length();
+            text.append(TOKENS[i]);
+            Annotation a = view.newAnnotation("tok" + i, Discriminators.Uri.TOKEN, start, text.length());
+            a.addFeature(Features.Token.WORD, TOKENS[i]);
+            text.append(' ');
+        }
+        container.setText(text.toString().trim());
+        Data data = new DataContainer(container);
+        data.setDiscriminator(Discriminators.Uri.TOKEN);
+        return data;
+    }
+}
@@ -0,0 +1,93 @@
+package org.lappsgrid.mallet;
+
+import org.lappsgrid.serialization.Data;
+
+import java.util.Arrays;
+
+/**
+ * The <code>topK</code> and <code>minProbability</code> request parameters,
+ * which limit the annotations produced for labels and topics to the most
+ * likely ones.
+ */
+final class OutputLimits {
+    static final String TOP_K = "topK";
+    static final String MIN_PROBABILITY = "minProbability";
+
+    /** Keep at most this many entries. */
+    final int topK;
+    /** Drop entries whose probability is lower than this. */
+    final double minProbability;
+
+    OutputLimits(int topK, double minProbability) {
+        this.topK = topK;
+        this.minProbability = minProbability;
+    }
+
+    /**
+     * Reads the limits from the request. Missing parameters do not limit the
+     * output.
+     *
+     * @throws IllegalArgumentException if a parameter is not a number.
+     */
+    static OutputLimits from(Data data) {
+        int topK = Integer.MAX_VALUE;
+        double minProbability = 0.0;
+        Object value = data.getParameter(TOP_K);
+        if (value != null) {
+            if (!(value instanceof Integer) || (Integer) value < 0) {
+                throw new IllegalArgumentException("Unable to use parameter: " + TOP_K);
+            }
+            topK = (Integer) value;
+        }
+        value = data.getParameter(MIN_PROBABILITY);
+        if (value != null) {
+            if (!(value instanceof Number)) {
+                throw new IllegalArgumentException("Unable to use parameter: " + MIN_PROBABILITY);
+            }
+            minProbability = ((Number) value).doubleValue();
+        }
+        return new OutputLimits(topK, minProbability);
+    }
+
+    /**
+     * Returns the indexes of the entries to keep, in increasing order.
+     */
+    int[] select(double[] probabilities) {
+        if (topK == 0) {
+            return new int[0];
+        }
+        int[] selected = new int[probabilities.length];
+        int n = 0;
+        for (int i = 0; i < probabilities.length; i++) {
+            if (probabilities[i] >= minProbability) {
+                selected[n++] = i;
+            }
+        }
+        if (n > topK) {
+            // the k-th largest probability is the smallest one we keep
+            double[] sorted = new double[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = probabilities[selected[i]];
+            }
+            Arrays.sort(sorted);
+            double threshold = sorted[n - topK];
+            // keep everything above the threshold, and as many ties as fit
+            int above = 0;
+            for (int i = 0; i < n; i++) {
+                if (probabilities[selected[i]] > threshold) {
+                    above++;
+                }
+            }
+            int ties = topK - above;
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                double p = probabilities[selected[i]];
+                if (p > threshold || (p == threshold && ties-- > 0)) {
+                    selected[kept++] = selected[i];
+                }
+            }
+            n = kept;
+        }
+        return Arrays.copyOf(selected, n);
+    }
+}
@@ -0,0 +1,113 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.util.Randoms;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Samples the topic distributions of a batch of documents on a fork-join
+ * pool.
+ * <p>
+ * Mallet's TopicInferencer keeps its sampling state in instance fields, so
+ * the documents are sampled with a {@link TopicSampler}, which keeps no state
+ * between calls and only reads the inferencer's type/topic counts. Every
+ * task has its own random number generator.
+ * <p>
+ * The size of the pool is set with the <code>mallet.topics.parallelism</code>
+ * system property and defaults to the number of processors.
+ */
+final class ParallelTopicInference {
+    static final String PARALLELISM = "mallet.topics.parallelism";
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Integer.getInteger(PARALLELISM, Runtime.getRuntime().availableProcessors()));
+
+    private ParallelTopicInference() {
+    }
+
+    /**
+     * Returns the sampled topic distribution of every instance, in the order
+     * of the instances.
+     */
+    static double[][] sample(final TopicSampler sampler, final List<Instance> instances,
+                             final int numIterations, final int thinning, final int burnIn) {
+        final double[][] distributions = new double[instances.size()][];
+        forEach(instances.size(), new Range() {
+            public void run(int start, int end) {
+                Randoms random = new Randoms();
+                for (int i = start; i < end; i++) {
+                    distributions[i] = sampler.sample((FeatureSequence) instances.get(i).getData(),
+                            random, numIterations, thinning, burnIn);
+                }
+            }
+        });
+        return distributions;
+    }
+
+    /**
+     * Samples every instance with the sampler, stopping each one early as
+     * described by {@link TopicSampler#sample(FeatureSequence, Randoms, int, int, int, double, long)}.
+     * Returns the results in the order of the instances.
+     *
+     * @param seed if not null, every instance is sampled with a new random
+     *             number generator with this seed, so that its result does not
+     *             depend on the other instances or on the order they run in.
+     */
+    static TopicSampler.Result[] sample(final TopicSampler sampler, final List<Instance> instances,
+                                        final int numIterations, final int thinning, final int burnIn,
+                                        final double tolerance, final long deadline, final Integer seed) {
+        final TopicSampler.Result[] results = new TopicSampler.Result[instances.size()];
+        forEach(instances.size(), new Range() {
+            public void run(int start, int end) {
+                Randoms random = seed == null ? new Randoms() : null;
+                for (int i = start; i < end; i++) {
+                    results[i] = sampler.sample((FeatureSequence) instances.get(i).getData(),
+                            seed == null ? random : new Randoms(seed),
+                            numIterations, thinning, burnIn, tolerance, deadline);
+                }
+            }
+        });
+        return results;
+    }
+
+    // a contiguous range of the documents, run by one task
+    private interface Range {
+        void run(int start, int end);
+    }
+
+    private static void forEach(int size, Range range) {
+        // a few tasks per worker so that long documents don't leave the
+        // other workers idle
+        int batchSize = Math.max(1, size / (pool.getParallelism() * 4));
+        pool.invoke(new Split(range, 0, size, batchSize));
+    }
+
+    private static class Split extends RecursiveAction {
+        private final Range range;
+        private final int start;
+        private final int end;
+        private final int batchSize;
+
+        Split(Range range, int start, int end, int batchSize) {
+            this.range = range;
+            this.start = start;
+            this.end = end;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > batchSize) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Split(range, start, middle, batchSize),
+                        new Split(range, middle, end, batchSize));
+                return;
+            }
+            range.run(start, end);
+        }
+    }
+}
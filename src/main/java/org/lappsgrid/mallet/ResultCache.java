@@ -0,0 +1,243 @@
+package org.lappsgrid.mallet;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of inference so that documents that are sent again, by
+ * retries, re-runs or duplicate content, are not processed again.
+ * <p>
+ * Results are keyed by a SHA-256 hash of everything they depend on: the
+ * model, the parameters that change the result and the input document (see
+ * {@link #key(Object, Object...)}). Models are identified by the loaded model
+ * object, so the results of a model that is reloaded or evicted from the
+ * {@link ModelCache} are no longer found and age out of this cache.
+ * <p>
+ * The cache holds at most <code>mallet.results.maxBytes</code> bytes of
+ * estimated heap, evicting the least recently used results first. The default
+ * of 0 disables the cache. It is registered with the platform MBean server as
+ * <code>org.lappsgrid.mallet:type=ResultCache</code>.
+ */
+public class ResultCache implements ResultCacheMXBean {
+    public static final String MAX_BYTES = "mallet.results.maxBytes";
+
+    // the key and its share of the map
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private static final ResultCache instance = new ResultCache(Long.getLong(MAX_BYTES, 0));
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance,
+                    new ObjectName("org.lappsgrid.mallet:type=ResultCache"));
+        } catch (JMException e) {
+            // Most likely another copy of the webapp already registered one.
+            e.printStackTrace();
+        }
+    }
+
+    public static ResultCache getInstance() {
+        return instance;
+    }
+
+    // access ordered, so iteration starts with the least recently used result
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+
+    // a unique name for every model we have seen, forgotten with the model
+    private final Map<Object, String> models = new WeakHashMap<>();
+    private long nextModel;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns false if the cache is disabled, in which case nothing is
+     * stored.
+     */
+    public synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the key of a result of the model. The parts are the name of
+     * the service, the parameters the result depends on and the input, in a
+     * fixed order. Parts may be null, strings, numbers, booleans, arrays of
+     * ints or lists of any of these.
+     */
+    public String key(Object model, Object... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        update(digest, modelName(model));
+        for (Object part : parts) {
+            update(digest, part);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private synchronized String modelName(Object model) {
+        String name = models.get(model);
+        if (name == null) {
+            name = "model" + nextModel++;
+            models.put(model, name);
+        }
+        return name;
+    }
+
+    // Every part is written with its type and length, so that different
+    // parts never hash the same way, e.g. ["ab", "c"] and ["a", "bc"].
+    private static void update(MessageDigest digest, Object part) {
+        if (part == null) {
+            digest.update((byte) 'n');
+        } else if (part instanceof List) {
+            List<?> list = (List<?>) part;
+            digest.update((byte) 'l');
+            updateLength(digest, list.size());
+            for (Object element : list) {
+                update(digest, element);
+            }
+        } else if (part instanceof int[]) {
+            int[] ints = (int[]) part;
+            digest.update((byte) 'i');
+            updateLength(digest, ints.length);
+            for (int i : ints) {
+                updateLength(digest, i);
+            }
+        } else if (part instanceof String || part instanceof Number || part instanceof Boolean) {
+            byte[] bytes = part.toString().getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) (part instanceof String ? 's' : part instanceof Boolean ? 'b' : 'd'));
+            updateLength(digest, bytes.length);
+            digest.update(bytes);
+        } else {
+            throw new IllegalArgumentException("Can not be part of a key: " + part.getClass().getName());
+        }
+    }
+
+    private static void updateLength(MessageDigest digest, int n) {
+        digest.update((byte) (n >>> 24));
+        digest.update((byte) (n >>> 16));
+        digest.update((byte) (n >>> 8));
+        digest.update((byte) n);
+    }
+
+    /**
+     * Returns the cached result, or null. Results are shared and must not be
+     * modified.
+     */
+    public synchronized Object get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * Caches a result, which must not be modified afterwards.
+     */
+    public synchronized void put(String key, Object result) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        Entry entry = new Entry(result, ENTRY_OVERHEAD + ModelFootprint.estimate(result));
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+        evict();
+    }
+
+    // Remove least recently used results until we are back within budget.
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getResultCount() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Clears the cache and its hit, miss and eviction counts.
+     */
+    public synchronized void reset() {
+        clear();
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    private static class Entry {
+        final Object result;
+        final long bytes;
+
+        Entry(Object result, long bytes) {
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+}
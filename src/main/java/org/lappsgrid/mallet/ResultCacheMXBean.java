@@ -0,0 +1,19 @@
+package org.lappsgrid.mallet;
+
+/**
+ * Management interface for the {@link ResultCache}. Registered with the
+ * platform MBean server as <code>org.lappsgrid.mallet:type=ResultCache</code>.
+ */
+public interface ResultCacheMXBean {
+    long getHits();
+    long getMisses();
+    long getEvictions();
+
+    int getResultCount();
+    long getBytes();
+
+    long getMaxBytes();
+    void setMaxBytes(long maxBytes);
+
+    void clear();
+}
@@ -0,0 +1,240 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.StringArrayIterator;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.lif.Annotation;
+import org.lappsgrid.serialization.lif.Container;
+import org.lappsgrid.serialization.lif.View;
+import org.lappsgrid.vocabulary.Features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tags a document one sentence at a time, transducing the sentences in
+ * parallel on a fork-join pool.
+ * <p>
+ * Sentences are taken from the first view of the container that contains
+ * sentence annotations. Without one, a sentence ends after every token that
+ * consists of sentence final punctuation.
+ * <p>
+ * The size of the pool is set with the <code>mallet.tagging.parallelism</code>
+ * system property and defaults to the number of processors.
+ */
+final class SentenceTagging {
+    static final String PARALLELISM = "mallet.tagging.parallelism";
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Integer.getInteger(PARALLELISM, Runtime.getRuntime().availableProcessors()));
+
+    private SentenceTagging() {
+    }
+
+    /**
+     * Splits the tokens into sentences. Every sentence is the list of the
+     * indexes of its tokens; tokens without a word are left out.
+     */
+    static List<int[]> sentences(Container container, List<Annotation> tokens) {
+        List<View> views = container.findViewsThatContain(Discriminators.Uri.SENTENCE);
+        return sentences(views == null || views.isEmpty() ? null : views.get(0), tokens);
+    }
+
+    /**
+     * Splits the tokens into sentences using the sentence annotations of the
+     * view, which may be null.
+     */
+    static List<int[]> sentences(View view, List<Annotation> tokens) {
+        if (view != null) {
+            List<Annotation> sentences = new ArrayList<>();
+            for (Annotation a : view.getAnnotations()) {
+                if (Discriminators.Uri.SENTENCE.equals(a.getAtType())
+                        && a.getStart() != null && a.getEnd() != null) {
+                    sentences.add(a);
+                }
+            }
+            if (!sentences.isEmpty()) {
+                return split(tokens, sentences);
+            }
+        }
+        return split(tokens);
+    }
+
+    // Groups the tokens by the sentence annotation their start offset falls
+    // in. Tokens outside every sentence stay with the sentence before them.
+    private static List<int[]> split(List<Annotation> tokens, List<Annotation> sentences) {
+        Annotation[] spans = sentences.toArray(new Annotation[sentences.size()]);
+        Arrays.sort(spans, new Comparator<Annotation>() {
+            public int compare(Annotation a, Annotation b) {
+                return Long.compare(a.getStart(), b.getStart());
+            }
+        });
+        long[] starts = new long[spans.length];
+        for (int i = 0; i < spans.length; i++) {
+            starts[i] = spans[i].getStart();
+        }
+
+        List<int[]> result = new ArrayList<>();
+        List<Integer> current = new ArrayList<>();
+        int currentSentence = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            Annotation token = tokens.get(i);
+            if (token.getFeature(Features.Token.WORD) == null) {
+                continue;
+            }
+            int sentence = -1;
+            if (token.getStart() != null) {
+                int found = Arrays.binarySearch(starts, token.getStart());
+                int candidate = found >= 0 ? found : -found - 2;
+                if (candidate >= 0 && token.getStart() < spans[candidate].getEnd()) {
+                    sentence = candidate;
+                }
+            }
+            if (sentence >= 0 && sentence != currentSentence) {
+                add(result, current);
+                currentSentence = sentence;
+            }
+            current.add(i);
+        }
+        add(result, current);
+        return result;
+    }
+
+    // Ends a sentence after every token that is sentence final punctuation.
+    private static List<int[]> split(List<Annotation> tokens) {
+        List<int[]> result = new ArrayList<>();
+        List<Integer> current = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            String word = tokens.get(i).getFeature(Features.Token.WORD);
+            if (word == null) {
+                continue;
+            }
+            current.add(i);
+            if (isSentenceEnd(word)) {
+                add(result, current);
+            }
+        }
+        add(result, current);
+        return result;
+    }
+
+    private static boolean isSentenceEnd(String word) {
+        if (word.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c != '.' && c != '!' && c != '?') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void add(List<int[]> result, List<Integer> sentence) {
+        if (sentence.isEmpty()) {
+            return;
+        }
+        int[] indexes = new int[sentence.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = sentence.get(i);
+        }
+        result.add(indexes);
+        sentence.clear();
+    }
+
+    /**
+     * Tags every sentence and returns the tag of every token, or null for
+     * the tokens that are not part of a sentence.
+     */
+    static String[] tag(CRF crf, List<Annotation> tokens, List<int[]> sentences, StageTimers timers) {
+        long start = System.nanoTime();
+        Sequence[] inputs = new Sequence[sentences.size()];
+        if (CrfInput.isSupported(crf)) {
+            for (int s = 0; s < inputs.length; s++) {
+                List<String> words = new ArrayList<>();
+                for (int index : sentences.get(s)) {
+                    words.add(tokens.get(index).getFeature(Features.Token.WORD));
+                }
+                inputs[s] = CrfInput.sequence(crf, words);
+            }
+        } else {
+            // Mallet's input format: one "word label" line per token
+            String[] texts = new String[sentences.size()];
+            for (int s = 0; s < texts.length; s++) {
+                StringBuilder builder = new StringBuilder();
+                for (int index : sentences.get(s)) {
+                    builder.append(tokens.get(index).getFeature(Features.Token.WORD));
+                    builder.append(" O\n"); // give every token the default label
+                }
+                texts[s] = builder.toString();
+            }
+
+            // the model is shared with other requests, so only one of them may
+            // use its pipe at a time
+            Pipe pipe = crf.getInputPipe();
+            InstanceList instances = new InstanceList(pipe);
+            synchronized (pipe) {
+                instances.addThruPipe(new StringArrayIterator(texts));
+            }
+            for (int s = 0; s < inputs.length; s++) {
+                inputs[s] = (Sequence) instances.get(s).getData();
+            }
+        }
+
+        start = timers.record(StageTimers.PIPE, start);
+
+        Sequence[] outputs = new Sequence[inputs.length];
+        pool.invoke(new Transduce(crf, inputs, outputs, 0, outputs.length));
+        timers.record(StageTimers.INFERENCE, start);
+
+        String[] tags = new String[tokens.size()];
+        for (int s = 0; s < outputs.length; s++) {
+            int[] indexes = sentences.get(s);
+            Sequence output = outputs[s];
+            if (output.size() != indexes.length) {
+                throw new IllegalStateException("Size of the result did not match up with the input size");
+            }
+            for (int i = 0; i < indexes.length; i++) {
+                tags[indexes[i]] = output.get(i).toString();
+            }
+        }
+        return tags;
+    }
+
+    private static class Transduce extends RecursiveAction {
+        private final CRF crf;
+        private final Sequence[] inputs;
+        private final Sequence[] outputs;
+        private final int start;
+        private final int end;
+
+        Transduce(CRF crf, Sequence[] inputs, Sequence[] outputs, int start, int end) {
+            this.crf = crf;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Transduce(crf, inputs, outputs, start, middle),
+                        new Transduce(crf, inputs, outputs, middle, end));
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                outputs[i] = crf.transduce(inputs[i]);
+            }
+        }
+    }
+}
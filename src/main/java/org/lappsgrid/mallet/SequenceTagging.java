@@ -11,22 +11,29 @@ import org.lappsgrid.metadata.IOSpecification;
 import org.lappsgrid.metadata.ServiceMetadata;
 import org.lappsgrid.serialization.Data;
 import org.lappsgrid.serialization.DataContainer;
-import org.lappsgrid.serialization.Serializer;
 import org.lappsgrid.serialization.lif.Annotation;
 import org.lappsgrid.serialization.lif.Container;
 import org.lappsgrid.serialization.lif.View;
 import org.lappsgrid.vocabulary.Features;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 
 public class SequenceTagging implements ProcessingService {
+    private static final StageTimers timers = StageTimers.forService(SequenceTagging.class);
+
+    // the discriminator of our output, a DataContainer
+    private static final String LIF = new DataContainer().getDiscriminator();
+
     public SequenceTagging() {
     }
 
@@ -67,9 +74,76 @@ public class SequenceTagging implements ProcessingService {
     }
 
     public String execute(String input) {
-        // Parse the input.
-        Data data = Serializer.parse(input, Data.class);
+        // turn the request away before parsing it if we are too busy
+        AdmissionControl admission = AdmissionControl.getInstance();
+        if (!admission.admit()) {
+            return admission.rejection();
+        }
+        try {
+            // Parse the input. Only the views we need are built.
+            long start = System.nanoTime();
+            Data data;
+            try {
+                data = LifReader.parse(input);
+            } catch (IOException e) {
+                return new Data<>(Discriminators.Uri.ERROR, "Unable to parse input: " + e.getMessage()).asJson();
+            }
+            timers.record(StageTimers.PARSE, start);
 
+            return execute(data, input);
+        } finally {
+            admission.release();
+        }
+    }
+
+    /**
+     * Processes the request on the {@link InferenceExecutor}, which limits how
+     * many requests for each model run at once. The future completes with
+     * the response execute would return.
+     */
+    public CompletableFuture<String> executeAsync(final String input) {
+        // turn the request away before parsing it if we are too busy; an
+        // admitted request keeps its place while it waits for its model
+        final AdmissionControl admission = AdmissionControl.getInstance();
+        if (!admission.admit()) {
+            return CompletableFuture.completedFuture(admission.rejection());
+        }
+        boolean submitted = false;
+        try {
+            // the request is parsed first, to know which model it is for
+            long start = System.nanoTime();
+            final Data<Object> data;
+            try {
+                data = LifReader.parse(input);
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(
+                        new Data<>(Discriminators.Uri.ERROR, "Unable to parse input: " + e.getMessage()).asJson());
+            }
+            timers.record(StageTimers.PARSE, start);
+
+            // the lane of the model, the default one if the request names none
+            String model = InferenceExecutor.model(data.getParameter("model"),
+                    this.getClass().getResource("/masc_500k_texts.model"));
+            CompletableFuture<String> response = InferenceExecutor.getInstance().submit(model, new Callable<String>() {
+                public String call() {
+                    return execute(data, input);
+                }
+            });
+            response.whenComplete(new BiConsumer<String, Throwable>() {
+                public void accept(String json, Throwable e) {
+                    admission.release();
+                }
+            });
+            submitted = true;
+            return response;
+        } finally {
+            if (!submitted) {
+                admission.release();
+            }
+        }
+    }
+
+    private String execute(Data data, String input) {
         // Check the discriminator
         final String discriminator = data.getDiscriminator();
         if (discriminator.equals(Discriminators.Uri.ERROR)) {
@@ -78,58 +152,45 @@ public class SequenceTagging implements ProcessingService {
         }
 
         // Extract the data.
-        Container container;
+        LifDocument document;
         if (discriminator.equals(Discriminators.Uri.TOKEN) ||
                 discriminator.equals(Discriminators.Uri.LAPPS)) {
-            container = new Container((Map) data.getPayload());
+            document = (LifDocument) data.getPayload();
         } else {
             // This is a format we don't accept.
             String message = String.format("Unsupported discriminator type: %s", discriminator);
             return new Data<>(Discriminators.Uri.ERROR, message).asJson();
         }
 
-        // Get the tokens from the input and turn them into Mallet's desired format
-        View view = new View(container.getView(0));
+        // Get the tokens from the input
+        View view = document.getView(0);
         List<Annotation> annotations = view.getAnnotations();
-        int numTokens = annotations.size();
-        StringBuilder textFormatted = new StringBuilder();
-        for (int i = 0; i < numTokens; i++) {
-            String token = annotations.get(i).getFeature(Features.Token.WORD);
-            if (token != null) {
-                textFormatted.append(token);
-                textFormatted.append(" O"); // give every token the default label
-                textFormatted.append('\n');
-            }
-        }
 
-        // get the sequence tagging .model file as an InputStream
+        // get the sequence tagging .model file URL
         Object model = data.getParameter("model");
-        InputStream inputStream;
+        URL url;
         if (model == null) {
             String defaultModel = "/masc_500k_texts.model";
-            inputStream = this.getClass().getResourceAsStream(defaultModel);
-            data.setParameter("model", this.getClass().getResource(defaultModel));
+            url = this.getClass().getResource(defaultModel);
+            data.setParameter("model", url);
         } else {
             try {
-                URL url = new URL(model.toString());
-                inputStream = url.openStream();
+                url = new URL(model.toString());
             } catch (MalformedURLException e) {
                 e.printStackTrace();
                 String message = "Path to file not valid";
                 return new Data<>(Discriminators.Uri.ERROR, message).asJson();
-            } catch (IOException e) {
-                e.printStackTrace();
-                String message = "Unable to open file";
-                return new Data<>(Discriminators.Uri.ERROR, message).asJson();
             }
         }
 
         CRF crf;
+        boolean loaded = ModelCache.getInstance().contains(url, null, false);
+        long start = System.nanoTime();
         try {
-            // get trained sequence tagging model
-            ObjectInputStream s = new ObjectInputStream(inputStream);
-            crf = (CRF) s.readObject();
-            s.close();
+            // get trained sequence tagging model, or the copy cached by an earlier request
+            crf = ModelCache.getInstance().get(url, CRF.class);
+        } catch (ModelTooLargeException e) {
+            return new Data<>(Discriminators.Uri.ERROR, e.getMessage()).asJson();
         } catch (IOException e) {
             e.printStackTrace();
             String message = "Unable to read model file";
@@ -139,36 +200,137 @@ public class SequenceTagging implements ProcessingService {
             String message = "Invalid model file";
             return new Data<>(Discriminators.Uri.ERROR, message).asJson();
         }
+        timers.record(loaded ? StageTimers.MODEL_LOAD_HIT : StageTimers.MODEL_LOAD_MISS, start);
 
-        // Turn our text into an instance to be tagged
-        InstanceList il = new InstanceList(crf.getInputPipe());
-        il.addThruPipe(new StringArrayIterator(new String[]{textFormatted.toString()}));
+        // reuse the tags of a document we have tagged before
+        boolean bySentence = Boolean.TRUE.equals(data.getParameter("sentences"));
+        List<int[]> sentences = bySentence ? SentenceTagging.sentences(
+                document.findViewThatContains(Discriminators.Uri.SENTENCE), annotations) : null;
+        ResultCache cache = ResultCache.getInstance();
+        String cacheKey = null;
+        String[] tags = null;
+        if (cache.isEnabled()) {
+            List<String> words = new ArrayList<>(annotations.size());
+            for (Annotation a : annotations) {
+                words.add(a.getFeature(Features.Token.WORD));
+            }
+            cacheKey = cache.key(crf, "tagging", words, sentences);
+            tags = (String[]) cache.get(cacheKey);
+        }
 
-        // Extract our text...
-        Sequence sequence = (Sequence) il.get(0).getData();
-        // ...and tag it using the provided model
-        Sequence outputs = crf.transduce(sequence);
+        if (tags == null) {
+            try {
+                tags = bySentence ? SentenceTagging.tag(crf, annotations, sentences, timers) : tag(crf, annotations);
+            } catch (IllegalStateException e) {
+                return new Data<>(Discriminators.Uri.ERROR, e.getMessage()).asJson();
+            }
+            if (cacheKey != null) {
+                cache.put(cacheKey, tags);
+            }
+        }
+
+        // stream compact output straight from the tags?
+        start = System.nanoTime();
+        if (Boolean.TRUE.equals(data.getParameter(LifWriter.COMPACT))) {
+            StringWriter out = new StringWriter();
+            try {
+                LifWriter writer = new LifWriter(out);
+                writer.startData(LIF);
+                writer.startContainer(new LifDocument((String) null));
+                writer.startView();
+                writer.contains(Discriminators.Uri.POS, this.getClass().getName(), "pos:mallet");
+                for (int j = 0; j < tags.length; j++) {
+                    if (tags[j] != null) {
+                        Annotation a = annotations.get(j);
+                        a.setAtType(Discriminators.Uri.POS);
+                        a.addFeature(Features.Token.POS, tags[j]);
+                        writer.annotation(a);
+                    }
+                }
+                writer.endView();
+                writer.endContainer();
+                writer.endData(null);
+            } catch (IOException e) {
+                // a StringWriter does not throw
+                throw new UncheckedIOException(e);
+            }
+            // building and serializing the output are one step
+            timers.record(StageTimers.SERIALIZE, start);
+            return out.toString();
+        }
 
         View resultsView = new View();
-        if (outputs.size() == sequence.size()) { // make sure the output is the right size
-            for (int j = 0; j < sequence.size(); j++) {
+        for (int j = 0; j < tags.length; j++) {
+            if (tags[j] != null) {
                 // add annotations for each token
                 Annotation a = annotations.get(j);
                 a.setAtType(Discriminators.Uri.POS);
-                a.addFeature(Features.Token.POS, outputs.get(j).toString());
+                a.addFeature(Features.Token.POS, tags[j]);
                 resultsView.add(a);
             }
-        } else {
-            return new Data<>(Discriminators.Uri.ERROR,
-                    "Size of the result did not match up with the input size").asJson();
         }
-
         resultsView.addContains(Discriminators.Uri.POS, this.getClass().getName(), "pos:mallet");
 
-        container = new Container();
+        Container container = new Container();
         container.addView(resultsView);
         data = new DataContainer(container);
-        return data.asPrettyJson();
+        start = timers.record(StageTimers.OUTPUT_BUILD, start);
+
+        String json = data.asPrettyJson();
+        timers.record(StageTimers.SERIALIZE, start);
+        return json;
+    }
+
+    // Tags the whole document as one sequence. The tag of the j-th token of
+    // the sequence belongs to the j-th annotation.
+    private static String[] tag(CRF crf, List<Annotation> annotations) {
+        long start = System.nanoTime();
+        Sequence sequence;
+        int numTokens = annotations.size();
+        if (CrfInput.isSupported(crf)) {
+            // Look the words up in the model's alphabet directly
+            List<String> words = new ArrayList<>(numTokens);
+            for (int i = 0; i < numTokens; i++) {
+                String token = annotations.get(i).getFeature(Features.Token.WORD);
+                if (token != null) {
+                    words.add(token);
+                }
+            }
+            sequence = CrfInput.sequence(crf, words);
+        } else {
+            // Turn the tokens into Mallet's desired format
+            StringBuilder textFormatted = new StringBuilder();
+            for (int i = 0; i < numTokens; i++) {
+                String token = annotations.get(i).getFeature(Features.Token.WORD);
+                if (token != null) {
+                    textFormatted.append(token);
+                    textFormatted.append(" O"); // give every token the default label
+                    textFormatted.append('\n');
+                }
+            }
+
+            // Turn our text into an instance to be tagged
+            // the model is shared with other requests, so only one of them may use its pipe at a time
+            InstanceList il = new InstanceList(crf.getInputPipe());
+            synchronized (crf.getInputPipe()) {
+                il.addThruPipe(new StringArrayIterator(new String[]{textFormatted.toString()}));
+            }
+
+            // Extract our text...
+            sequence = (Sequence) il.get(0).getData();
+        }
+        start = timers.record(StageTimers.PIPE, start);
 
+        // ...and tag it using the provided model
+        Sequence outputs = crf.transduce(sequence);
+        timers.record(StageTimers.INFERENCE, start);
+        if (outputs.size() != sequence.size()) { // make sure the output is the right size
+            throw new IllegalStateException("Size of the result did not match up with the input size");
+        }
+        String[] tags = new String[outputs.size()];
+        for (int j = 0; j < tags.length; j++) {
+            tags[j] = outputs.get(j).toString();
+        }
+        return tags;
     }
 }
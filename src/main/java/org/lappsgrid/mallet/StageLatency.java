@@ -0,0 +1,66 @@
+package org.lappsgrid.mallet;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The latencies of one stage of a service, as reported by
+ * {@link StageTimersMXBean#getStages()}. Times are in milliseconds.
+ */
+public class StageLatency {
+    private final String stage;
+    private final long count;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final double p999Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({"stage", "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis",
+            "p999Millis", "maxMillis"})
+    public StageLatency(String stage, long count, double meanMillis, double p50Millis, double p90Millis,
+                        double p99Millis, double p999Millis, double maxMillis) {
+        this.stage = stage;
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.p999Millis = p999Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    /** The name of the stage, e.g. "parse" or "inference". */
+    public String getStage() {
+        return stage;
+    }
+
+    /** The number of times the stage ran. */
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getP999Millis() {
+        return p999Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+}
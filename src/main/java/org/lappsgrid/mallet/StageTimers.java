@@ -0,0 +1,139 @@
+package org.lappsgrid.mallet;
+
+import org.lappsgrid.serialization.Serializer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Latency histograms for the stages of one service: parsing the request,
+ * loading the model (from the {@link ModelCache} or not), piping the text,
+ * inference or training, building the output and serializing it.
+ * <p>
+ * A service times a stage by passing the time it started to
+ * {@link #record(String, long)}, which returns the time it ended, so that
+ * consecutive stages only read the clock once each:
+ * <pre>
+ * long start = System.nanoTime();
+ * ...
+ * start = timers.record(StageTimers.PIPE, start);
+ * ...
+ * start = timers.record(StageTimers.INFERENCE, start);
+ * </pre>
+ * The timers of every service are registered with the platform MBean server
+ * as <code>org.lappsgrid.mallet:type=StageTimers,service=&lt;service&gt;</code>,
+ * and can be dumped as JSON, one service at a time or all together with
+ * {@link #dumpAll()}.
+ */
+public class StageTimers implements StageTimersMXBean {
+    public static final String PARSE = "parse";
+    public static final String MODEL_LOAD_HIT = "modelLoadHit";
+    public static final String MODEL_LOAD_MISS = "modelLoadMiss";
+    public static final String PIPE = "pipe";
+    public static final String INFERENCE = "inference";
+    public static final String TRAINING = "training";
+    public static final String OUTPUT_BUILD = "outputBuild";
+    public static final String SERIALIZE = "serialize";
+
+    // every service, in the order they were first used
+    private static final Map<String, StageTimers> services = new LinkedHashMap<>();
+
+    /**
+     * Returns the timers of a service, registering them the first time.
+     */
+    public static synchronized StageTimers forService(Class<?> service) {
+        String name = service.getSimpleName();
+        StageTimers timers = services.get(name);
+        if (timers == null) {
+            timers = new StageTimers();
+            services.put(name, timers);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(timers,
+                        new ObjectName("org.lappsgrid.mallet:type=StageTimers,service=" + name));
+            } catch (JMException e) {
+                // Most likely another copy of the webapp already registered one.
+                e.printStackTrace();
+            }
+        }
+        return timers;
+    }
+
+    /**
+     * Returns the latencies of every stage of every service as JSON, keyed
+     * by the name of the service.
+     */
+    public static synchronized String dumpAll() {
+        Map<String, List<StageLatency>> all = new LinkedHashMap<>();
+        for (Map.Entry<String, StageTimers> entry : services.entrySet()) {
+            all.put(entry.getKey(), entry.getValue().getStages());
+        }
+        return Serializer.toPrettyJson(all);
+    }
+
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final List<String> stages = new CopyOnWriteArrayList<>();
+
+    StageTimers() {
+    }
+
+    /**
+     * Records a stage that started at the given System.nanoTime, and returns
+     * the time it ended.
+     */
+    public long record(String stage, long start) {
+        long end = System.nanoTime();
+        histogram(stage).record(end - start);
+        return end;
+    }
+
+    private LatencyHistogram histogram(String stage) {
+        LatencyHistogram histogram = histograms.get(stage);
+        if (histogram == null) {
+            // only the first time a stage runs, and never while resetting
+            synchronized (this) {
+                histogram = histograms.get(stage);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    histograms.put(stage, histogram);
+                    stages.add(stage);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    public List<StageLatency> getStages() {
+        List<StageLatency> latencies = new ArrayList<>();
+        for (String stage : stages) {
+            LatencyHistogram histogram = histograms.get(stage);
+            if (histogram == null) {
+                // reset in the meantime
+                continue;
+            }
+            latencies.add(new StageLatency(stage, histogram.getCount(),
+                    histogram.getMean() / 1e6,
+                    histogram.getPercentile(50) / 1e6,
+                    histogram.getPercentile(90) / 1e6,
+                    histogram.getPercentile(99) / 1e6,
+                    histogram.getPercentile(99.9) / 1e6,
+                    histogram.getMax() / 1e6));
+        }
+        return latencies;
+    }
+
+    public String dump() {
+        return Serializer.toPrettyJson(getStages());
+    }
+
+    public synchronized void reset() {
+        stages.clear();
+        histograms.clear();
+    }
+}
@@ -0,0 +1,23 @@
+package org.lappsgrid.mallet;
+
+import java.util.List;
+
+/**
+ * Management interface for the {@link StageTimers} of a service. Registered
+ * with the platform MBean server as
+ * <code>org.lappsgrid.mallet:type=StageTimers,service=&lt;service&gt;</code>.
+ */
+public interface StageTimersMXBean {
+    /**
+     * The latencies of every stage the service has run, in the order the
+     * stages were first run.
+     */
+    List<StageLatency> getStages();
+
+    /**
+     * Returns the latencies of every stage as JSON.
+     */
+    String dump();
+
+    void reset();
+}
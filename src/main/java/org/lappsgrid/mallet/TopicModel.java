@@ -0,0 +1,126 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.pipe.CharSequence2TokenSequence;
+import cc.mallet.pipe.CharSequenceLowercase;
+import cc.mallet.pipe.Input2CharSequence;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.pipe.TokenSequence2FeatureSequence;
+import cc.mallet.pipe.TokenSequenceRemoveStopwords;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InvalidObjectException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A TopicInferencer together with the keys of its topics, as cached by the
+ * {@link ModelCache}. The number of keys is checked against the number of
+ * topics when the pair is created.
+ * <p>
+ * The model also holds the pipe that turns texts into the inferencer's
+ * features, built once with the inferencer's own alphabet. The alphabet's
+ * growth is stopped, so words the model has never seen are dropped.
+ */
+public final class TopicModel {
+    private final TopicInferencer inferencer;
+    private final List<String> keys;
+    private final TopicSampler sampler;
+    private final Pipe pipe;
+
+    public TopicModel(TopicInferencer inferencer, List<String> keys) throws InvalidObjectException {
+        int numberOfTopics = numTopics(inferencer);
+        int numberOfKeys = keys.size();
+        if (numberOfTopics != numberOfKeys) {
+            throw new InvalidObjectException(String.format(
+                    "Number of topics and number of topic keys are different. " +
+                    "Number of topics:%d Number of keys: %d", numberOfTopics, numberOfKeys));
+        }
+        this.inferencer = inferencer;
+        this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+        this.sampler = TopicSampler.of(inferencer);
+        this.pipe = pipe(Inferencers.alphabet(inferencer));
+    }
+
+    private static Pipe pipe(Alphabet alphabet) {
+        alphabet.stopGrowth();
+        ArrayList<Pipe> pipeList = new ArrayList<>();
+        pipeList.add(new Input2CharSequence());
+        pipeList.add(new CharSequenceLowercase());
+        pipeList.add(new CharSequence2TokenSequence());
+        pipeList.add(new TokenSequenceRemoveStopwords());
+        pipeList.add(new TokenSequence2FeatureSequence(alphabet));
+        return new SerialPipes(pipeList);
+    }
+
+    public TopicInferencer getInferencer() {
+        return inferencer;
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public int getNumTopics() {
+        return keys.size();
+    }
+
+    /**
+     * The pipe that turns texts into instances for the inferencer. The pipe's
+     * tokenizer is not thread safe, so callers synchronize on the pipe.
+     */
+    Pipe getPipe() {
+        return pipe;
+    }
+
+    /**
+     * A sampler over the inferencer's counts that can stop early and is safe
+     * to use from many threads.
+     */
+    TopicSampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Reads a Mallet topic keys file. The keys of each topic start on the
+     * third column of its line.
+     */
+    static List<String> readKeys(URL url) throws IOException {
+        List<String> topicKeys = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                ModelCompression.decompress(url.openStream())))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int tabs = 0;
+                int lgth = line.length();
+                for (int i = 0; i < lgth; i++) {
+                    // looking for 2 tabs
+                    if (Character.isSpaceChar(line.charAt(i))) {
+                        tabs++;
+                    }
+                    // topic keys start on 3rd column (after 2 tabs)
+                    if (tabs == 2) {
+                        if (lgth > i) {
+                            topicKeys.add(line.substring(i + 1));
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        return topicKeys;
+    }
+
+    private static int numTopics(TopicInferencer inferencer) {
+        if (inferencer instanceof MappedTopicInferencer) {
+            return ((MappedTopicInferencer) inferencer).getNumTopics();
+        }
+        return Inferencers.numTopics(inferencer);
+    }
+}
@@ -2,17 +2,17 @@ package org.lappsgrid.mallet;
 
 
 
-import cc.mallet.pipe.*;
+import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.iterator.StringArrayIterator;
-import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.InstanceList;
+import cc.mallet.util.Randoms;
 import org.lappsgrid.api.ProcessingService;
 import org.lappsgrid.discriminator.Discriminators;
 import org.lappsgrid.metadata.IOSpecification;
 import org.lappsgrid.metadata.ServiceMetadata;
 import org.lappsgrid.serialization.Data;
 import org.lappsgrid.serialization.DataContainer;
-import org.lappsgrid.serialization.Serializer;
 import org.lappsgrid.serialization.lif.Annotation;
 import org.lappsgrid.serialization.lif.Container;
 import org.lappsgrid.serialization.lif.View;
@@ -22,11 +22,17 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 
 public class TopicModeling implements ProcessingService
 {
+    private static final StageTimers timers = StageTimers.forService(TopicModeling.class);
+
     public TopicModeling() { }
 
     private String generateMetadata() {
@@ -64,11 +70,77 @@ public class TopicModeling implements ProcessingService
         return generateMetadata();
     }
 
-    Data data;
     public String execute(String input) {
-        // Parse the input.
-        data = Serializer.parse(input, Data.class);
+        // turn the request away before parsing it if we are too busy
+        AdmissionControl admission = AdmissionControl.getInstance();
+        if (!admission.admit()) {
+            return admission.rejection();
+        }
+        try {
+            // Parse the input. The views of LIF documents are only built if we need them.
+            long start = System.nanoTime();
+            Data<Object> data;
+            try {
+                data = LifReader.parse(input);
+            } catch (IOException e) {
+                return new Data<>(Discriminators.Uri.ERROR, "Unable to parse input: " + e.getMessage()).asJson();
+            }
+            timers.record(StageTimers.PARSE, start);
 
+            return execute(data, input);
+        } finally {
+            admission.release();
+        }
+    }
+
+    /**
+     * Processes the request on the {@link InferenceExecutor}, which limits how
+     * many requests for each topic inferencer run at once. The future completes with
+     * the response execute would return.
+     */
+    public CompletableFuture<String> executeAsync(final String input) {
+        // turn the request away before parsing it if we are too busy; an
+        // admitted request keeps its place while it waits for its model
+        final AdmissionControl admission = AdmissionControl.getInstance();
+        if (!admission.admit()) {
+            return CompletableFuture.completedFuture(admission.rejection());
+        }
+        boolean submitted = false;
+        try {
+            // the request is parsed first, to know which model it is for
+            long start = System.nanoTime();
+            final Data<Object> data;
+            try {
+                data = LifReader.parse(input);
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(
+                        new Data<>(Discriminators.Uri.ERROR, "Unable to parse input: " + e.getMessage()).asJson());
+            }
+            timers.record(StageTimers.PARSE, start);
+
+            // the lane of the model, the default one if the request names none
+            String model = InferenceExecutor.model(data.getParameter("inferencer"),
+                    this.getClass().getResource("/masc_500k_texts.inferencer"));
+            CompletableFuture<String> response = InferenceExecutor.getInstance().submit(model, new Callable<String>() {
+                public String call() {
+                    return execute(data, input);
+                }
+            });
+            response.whenComplete(new BiConsumer<String, Throwable>() {
+                public void accept(String json, Throwable e) {
+                    admission.release();
+                }
+            });
+            submitted = true;
+            return response;
+        } finally {
+            if (!submitted) {
+                admission.release();
+            }
+        }
+    }
+
+    private String execute(Data data, String input) {
         // Check the discriminator
         final String discriminator = data.getDiscriminator();
         if (discriminator.equals(Discriminators.Uri.ERROR)) {
@@ -76,169 +148,292 @@ public class TopicModeling implements ProcessingService
             return input;
         }
 
-        // Extract the text.
-        Container container;
-        if (discriminator.equals(Discriminators.Uri.TEXT)) {
-            container = new Container();
-            container.setText(data.getPayload().toString());
+        // Extract the text. A list payload is a batch of documents, each
+        // either a text or a LIF container.
+        Object payload = data.getPayload();
+        boolean batch = payload instanceof List;
+        List<LifDocument> documents = new ArrayList<>();
+        if (batch && (discriminator.equals(Discriminators.Uri.TEXT)
+                || discriminator.equals(Discriminators.Uri.LAPPS)
+                || discriminator.equals(Discriminators.Uri.JSON))) {
+            for (Object document : (List) payload) {
+                documents.add(toDocument(document));
+            }
+        } else if (discriminator.equals(Discriminators.Uri.TEXT)) {
+            documents.add(new LifDocument(payload.toString()));
         } else if (discriminator.equals(Discriminators.Uri.LAPPS)) {
-            container = new Container((Map) data.getPayload());
+            documents.add((LifDocument) payload);
         } else {
             // This is a format we don't accept.
             String message = String.format("Unsupported discriminator type: %s", discriminator);
             return new Data<>(Discriminators.Uri.ERROR, message).asJson();
         }
-        // Get the text from the container
-        String text = container.getText();
-
-        // process input into the an InstanceList
-        ArrayList<Pipe> pipeList = new ArrayList<>();
-        pipeList.add(new Input2CharSequence());
-        pipeList.add(new CharSequenceLowercase());
-        pipeList.add(new CharSequence2TokenSequence());
-        pipeList.add(new TokenSequenceRemoveStopwords());
-        pipeList.add(new TokenSequence2FeatureSequence());
-        Pipe p = new SerialPipes(pipeList);
-        InstanceList instances = new InstanceList(p);
-        instances.addThruPipe(new StringArrayIterator
-                (new String[]{text}));
+        // Get the text from the documents
+        String[] texts = new String[documents.size()];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = documents.get(i).getText();
+        }
 
-        // get the topic modeling inferencer file as an InputStream
+        // get the topic modeling inferencer file URL
         Object inferencer = data.getParameter("inferencer");
-        InputStream inputStream;
+        URL inferencerUrl;
         if (inferencer == null) {
             String defaultInferencer = "/masc_500k_texts.inferencer";
-            inputStream = this.getClass().getResourceAsStream(defaultInferencer);
-            data.setParameter("inferencer", this.getClass().getResource(defaultInferencer));
+            inferencerUrl = this.getClass().getResource(defaultInferencer);
+            data.setParameter("inferencer", inferencerUrl);
         } else {
             try {
-                URL url = new URL(inferencer.toString());
-                inputStream = url.openStream();
+                inferencerUrl = new URL(inferencer.toString());
             } catch (MalformedURLException e) {
                 e.printStackTrace();
                 String message = "Path to file not valid";
                 return new Data<>(Discriminators.Uri.ERROR, message).asJson();
-            } catch (IOException e) {
-                e.printStackTrace();
-                String message = "Unable to open file";
-                return new Data<>(Discriminators.Uri.ERROR, message).asJson();
             }
         }
 
-        // turn the inferencer InputStream into a TopicInferencer object
-        TopicInferencer ti;
-        try {
-            ObjectInputStream ois = new ObjectInputStream(inputStream);
-            ti = (TopicInferencer) ois.readObject();
-            ois.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            String message = "Unable to read inferencer file";
-            return new Data<>(Discriminators.Uri.ERROR, message).asJson();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            String message = "Invalid inferencer file";
-            return new Data<>(Discriminators.Uri.ERROR, message).asJson();
-        }
-
-        // get the topic modeling topic keys file
-        BufferedReader br;
+        // get the topic modeling topic keys file URL
         Object keys = data.getParameter("keys");
         String defaultKeys = "/masc_500k_texts_topic_keys.txt";
-        if (keys == null || keys == defaultKeys) {
-            inputStream = this.getClass().getResourceAsStream(defaultKeys);
-            data.setParameter("keys", this.getClass().getResource(defaultKeys));
+        URL keysUrl;
+        if (keys == null || defaultKeys.equals(keys)) {
+            keysUrl = this.getClass().getResource(defaultKeys);
+            data.setParameter("keys", keysUrl);
         } else{
             try {
-                URL url = new URL(keys.toString());
-                inputStream = url.openStream();
+                keysUrl = new URL(keys.toString());
             } catch (MalformedURLException e) {
                 e.printStackTrace();
                 String message = "Path to file not valid";
                 return new Data<>(Discriminators.Uri.ERROR, message).asJson();
-            } catch (IOException e) {
-                e.printStackTrace();
-                String message = "Unable to open file";
-                return new Data<>(Discriminators.Uri.ERROR, message).asJson();
             }
         }
-        br = new BufferedReader(new InputStreamReader(inputStream));
 
-        // read the topic keys .txt file and store topics in an ArrayList
-        ArrayList<String> topicKeys = new ArrayList<>();
-        String line;
+        // load the TopicInferencer and its topic keys, or get the pair cached by
+        // an earlier request. The keys are only parsed, and checked against the
+        // number of topics, when the pair is loaded.
+        // Binary inferencer files can be memory mapped instead of read onto the heap.
+        boolean mapped = Boolean.TRUE.equals(data.getParameter("mapped"));
+        TopicModel model;
+        boolean loaded = ModelCache.getInstance().contains(inferencerUrl, keysUrl, mapped);
+        long start = System.nanoTime();
         try {
-            while ((line = br.readLine()) != null) {
-                int tabs = 0;
-                int lgth = line.length();
-                for (int i = 0; i < lgth; i++){
-                    // looking for 2 tabs
-                    if (Character.isSpaceChar(line.charAt(i))){
-                        tabs++;
-                    }
-                    // topic keys start on 3rd column (after 2 tabs)
-                    if (tabs == 2){
-                        if (lgth > i) {
-                            topicKeys.add(line.substring(i+1));
-                        }
-                        break;
-                    }
-                }
-            }
-            br.close();
-        } catch (IOException e){
+            model = ModelCache.getInstance().getTopicModel(inferencerUrl, keysUrl, mapped);
+        } catch (ModelTooLargeException e) {
+            return new Data<>(Discriminators.Uri.ERROR, e.getMessage()).asJson();
+        } catch (InvalidObjectException e) {
+            // the inferencer contains a different number of topics than the
+            // topic keys file
+            return new Data<>(Discriminators.Uri.ERROR, e.getMessage()).asJson();
+        } catch (IOException e) {
             e.printStackTrace();
-            String message = "Unable to read topic keys file";
+            String message = "Unable to read inferencer or topic keys file";
+            return new Data<>(Discriminators.Uri.ERROR, message).asJson();
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            String message = "Invalid inferencer file";
             return new Data<>(Discriminators.Uri.ERROR, message).asJson();
         }
+        timers.record(loaded ? StageTimers.MODEL_LOAD_HIT : StageTimers.MODEL_LOAD_MISS, start);
+        List<String> topicKeys = model.getKeys();
 
         // get sampling parameters
         int numIterations, thinning, burnIn;
         try {
-            numIterations = getIntParameter("numIterations", 100);
-            thinning = getIntParameter("thinning", 10);
-            burnIn = getIntParameter("burnIn", 10);
+            numIterations = getIntParameter(data, "numIterations", 100);
+            thinning = getIntParameter(data, "thinning", 10);
+            burnIn = getIntParameter(data, "burnIn", 10);
         } catch (ClassCastException e){
             e.printStackTrace();
             return new Data<>(Discriminators.Uri.ERROR, e.getMessage()).asJson();
         }
 
-        // get the proportion of each topic in our text
-        double[] sampledDistribution =
-                ti.getSampledDistribution(instances.get(0), numIterations, thinning, burnIn);
-
-        // return an error if the inferencer contains a different number of
-        // topics than the topic keys file
-        int numberOfTopics = sampledDistribution.length;
-        int numberOfKeys = topicKeys.size();
-        if (numberOfTopics != numberOfKeys){
-            String message = String.format(
-                    "Number of topics and number of topic keys are different. " +
-            "Number of topics:%d Number of keys: %d", numberOfTopics, numberOfKeys);
-            return new Data<>(Discriminators.Uri.ERROR, message).asJson();
+        // limit the output to the most likely topics?
+        OutputLimits limits;
+        try {
+            limits = OutputLimits.from(data);
+        } catch (IllegalArgumentException e) {
+            return new Data<>(Discriminators.Uri.ERROR, e.getMessage()).asJson();
         }
 
-        View view = new View();
+        // stop sampling once the topic proportions stop changing, or once the
+        // time budget (in milliseconds) of the request has been used?
+        Object tolerance = data.getParameter("tolerance");
+        if (tolerance != null && !(tolerance instanceof Number)) {
+            return new Data<>(Discriminators.Uri.ERROR, "Unable to use parameter: tolerance").asJson();
+        }
+        Object timeBudget = data.getParameter("timeBudget");
+        if (timeBudget != null && (!(timeBudget instanceof Integer) || (Integer) timeBudget < 0)) {
+            return new Data<>(Discriminators.Uri.ERROR, "Unable to use parameter: timeBudget").asJson();
+        }
 
-        for (int i = 0; i < numberOfTopics; i++){
-            Annotation a = new Annotation();
-            a.setId("topic" + i);
-            a.addFeature("topic", topicKeys.get(i));
-            a.addFeature("proportion", Double.toString(sampledDistribution[i]));
-            view.add(a);
+        // sample with a fixed seed, so that the same document always gets the
+        // same topic proportions?
+        Object seed = data.getParameter("seed");
+        if (seed != null && !(seed instanceof Integer)) {
+            return new Data<>(Discriminators.Uri.ERROR, "Unable to use parameter: seed").asJson();
         }
-        view.addContains("topic proportions", this.getClass().getName(), "topic-proportions:mallet");
-        container.addView(view);
-        Map parameters = data.getParameters();
-        Data data = new DataContainer(container);
-        data.setDiscriminator(Discriminators.Uri.JSON);
-        data.setParameters(parameters);
+        boolean adaptive = tolerance != null || timeBudget != null;
+        double toleranceValue = tolerance == null ? 0.0 : ((Number) tolerance).doubleValue();
 
-        return data.asPrettyJson();
+        // reuse the results of documents we have sampled before. Only seeded
+        // results are repeatable, and a time budget makes them depend on load.
+        ResultCache cache = ResultCache.getInstance();
+        boolean caching = cache.isEnabled() && seed != null && timeBudget == null;
+        double[][] sampledDistributions = new double[texts.length][];
+        int[] iterations = new int[texts.length];
+        String[] cacheKeys = new String[texts.length];
+        List<Integer> missing = new ArrayList<>();
+        for (int d = 0; d < texts.length; d++) {
+            if (caching) {
+                cacheKeys[d] = cache.key(model, "topics", numIterations, thinning, burnIn,
+                        seed, toleranceValue, texts[d]);
+                TopicSampler.Result cached = (TopicSampler.Result) cache.get(cacheKeys[d]);
+                if (cached != null) {
+                    sampledDistributions[d] = cached.distribution;
+                    iterations[d] = cached.iterations;
+                    continue;
+                }
+            }
+            missing.add(d);
+        }
+        String[] missingTexts = new String[missing.size()];
+        for (int m = 0; m < missingTexts.length; m++) {
+            missingTexts[m] = texts[missing.get(m)];
+        }
+
+        // process input into the an InstanceList
+        // the pipe is built once per model, and its tokenizer is shared with
+        // other requests
+        start = System.nanoTime();
+        Pipe p = model.getPipe();
+        InstanceList instances = new InstanceList(p);
+        synchronized (p) {
+            instances.addThruPipe(new StringArrayIterator(missingTexts));
+        }
+        if (!instances.isEmpty()) {
+            start = timers.record(StageTimers.PIPE, start);
+        }
+
+        // get the proportion of each topic in our texts
+        // Mallet's inferencer keeps its sampling state in instance fields and is
+        // shared with other requests, so we sample with the model's sampler,
+        // which keeps no state between calls and shares the trained counts.
+        // Batches are sampled in parallel.
+        if (instances.isEmpty()) {
+            // every document was cached
+        } else if (adaptive || seed != null) {
+            long deadline = timeBudget == null ? TopicSampler.NO_DEADLINE
+                    : System.nanoTime() + (Integer) timeBudget * 1000000L;
+            TopicSampler.Result[] results = ParallelTopicInference.sample(model.getSampler(), instances,
+                    numIterations, thinning, burnIn, toleranceValue, deadline, (Integer) seed);
+            for (int m = 0; m < results.length; m++) {
+                int d = missing.get(m);
+                sampledDistributions[d] = results[m].distribution;
+                iterations[d] = results[m].iterations;
+                if (caching) {
+                    cache.put(cacheKeys[d], results[m]);
+                }
+            }
+        } else if (instances.size() != 1) {
+            double[][] distributions = ParallelTopicInference.sample(
+                    model.getSampler(), instances, numIterations, thinning, burnIn);
+            for (int m = 0; m < distributions.length; m++) {
+                sampledDistributions[missing.get(m)] = distributions[m];
+            }
+        } else {
+            sampledDistributions[missing.get(0)] = model.getSampler().sample(
+                    (FeatureSequence) instances.get(0).getData(), new Randoms(), numIterations, thinning, burnIn);
+        }
+        if (!instances.isEmpty()) {
+            timers.record(StageTimers.INFERENCE, start);
+        }
+
+        // stream compact output straight from the distributions?
+        start = System.nanoTime();
+        if (Boolean.TRUE.equals(data.getParameter(LifWriter.COMPACT))) {
+            StringWriter out = new StringWriter();
+            try {
+                LifWriter writer = new LifWriter(out);
+                writer.startData(Discriminators.Uri.JSON);
+                if (batch) {
+                    writer.startBatch();
+                }
+                for (int d = 0; d < sampledDistributions.length; d++) {
+                    writer.startContainer(documents.get(d));
+                    writer.startView();
+                    writer.contains("topic proportions", this.getClass().getName(), "topic-proportions:mallet");
+                    if (adaptive) {
+                        writer.metadata("iterations", iterations[d]);
+                    }
+                    for (int i : limits.select(sampledDistributions[d])) {
+                        writer.annotation("topic" + i,
+                                "topic", topicKeys.get(i),
+                                "proportion", Double.toString(sampledDistributions[d][i]));
+                    }
+                    writer.endView();
+                    writer.endContainer();
+                }
+                if (batch) {
+                    writer.endBatch();
+                }
+                writer.endData(data.getParameters());
+            } catch (IOException e) {
+                // a StringWriter does not throw
+                throw new UncheckedIOException(e);
+            }
+            // building and serializing the output are one step
+            timers.record(StageTimers.SERIALIZE, start);
+            return out.toString();
+        }
+
+        List<Container> containers = new ArrayList<>();
+        for (LifDocument document : documents) {
+            containers.add(document.toContainer());
+        }
+        for (int d = 0; d < sampledDistributions.length; d++) {
+            double[] sampledDistribution = sampledDistributions[d];
+
+            View view = new View();
+
+            for (int i : limits.select(sampledDistribution)){
+                Annotation a = new Annotation();
+                a.setId("topic" + i);
+                a.addFeature("topic", topicKeys.get(i));
+                a.addFeature("proportion", Double.toString(sampledDistribution[i]));
+                view.add(a);
+            }
+            view.addContains("topic proportions", this.getClass().getName(), "topic-proportions:mallet");
+            if (adaptive) {
+                // how many of the numIterations were needed
+                view.getMetadata().put("iterations", iterations[d]);
+            }
+            containers.get(d).addView(view);
+        }
+        Data response;
+        if (batch) {
+            response = new Data<>(Discriminators.Uri.JSON, containers);
+        } else {
+            response = new DataContainer(containers.get(0));
+            response.setDiscriminator(Discriminators.Uri.JSON);
+        }
+        response.setParameters(data.getParameters());
+        start = timers.record(StageTimers.OUTPUT_BUILD, start);
+
+        String json = response.asPrettyJson();
+        timers.record(StageTimers.SERIALIZE, start);
+        return json;
+    }
+
+    // a document in a batch is either a LIF container or its text
+    private static LifDocument toDocument(Object document) {
+        if (document instanceof LifDocument) {
+            return (LifDocument) document;
+        }
+        return new LifDocument(document == null ? "" : document.toString());
     }
 
     // gets an integer parameter from the data being passed through
-    public int getIntParameter(String parameterName, int defaultInt) throws ClassCastException{
+    public static int getIntParameter(Data data, String parameterName, int defaultInt) throws ClassCastException{
         Object temp;
 
         temp = data.getParameter(parameterName);
@@ -0,0 +1,340 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.util.Randoms;
+
+import java.nio.IntBuffer;
+
+/**
+ * The SparseLDA sampler of Mallet's TopicInferencer.getSampledDistribution,
+ * with all sampling state local to each call, over type/topic counts held
+ * either on the heap or in a mapped {@link BinaryModelFormat} file.
+ * <p>
+ * Sampling may stop before the requested number of iterations: once the
+ * average of the samples saved so far changes by less than a tolerance from
+ * one sample to the next, or once a deadline has passed.
+ */
+final class TopicSampler {
+    /** No deadline. */
+    static final long NO_DEADLINE = 0L;
+
+    /**
+     * The type/topic counts of a model. Every entry packs a count and a topic
+     * as <code>count &lt;&lt; topicBits | topic</code>; the entries of a type
+     * are sorted by count and end at the first entry that is not positive.
+     */
+    interface Counts {
+        int numTypes();
+
+        int length(int type);
+
+        int get(int type, int index);
+    }
+
+    /**
+     * The distribution sampled for a document and how it was arrived at.
+     */
+    static final class Result {
+        final double[] distribution;
+        /** The number of iterations actually run. */
+        final int iterations;
+        /** True if sampling stopped because the distribution converged. */
+        final boolean converged;
+
+        Result(double[] distribution, int iterations, boolean converged) {
+            this.distribution = distribution;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+    }
+
+    private final int numTopics;
+    private final int topicMask;
+    private final int topicBits;
+    private final double[] alpha;
+    private final double beta;
+    private final double betaSum;
+    private final int[] tokensPerTopic;
+    private final Counts counts;
+
+    // alpha[topic] / (tokensPerTopic[topic] + betaSum), the coefficients for a document with no tokens
+    private final double[] smoothingCoefficients;
+    private final double smoothingOnlyMass;
+
+    TopicSampler(int[] tokensPerTopic, double[] alpha, double beta, double betaSum, Counts counts) {
+        this.numTopics = tokensPerTopic.length;
+        if (Integer.bitCount(numTopics) == 1) {
+            topicMask = numTopics - 1;
+        } else {
+            topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
+        }
+        topicBits = Integer.bitCount(topicMask);
+        this.alpha = alpha;
+        this.beta = beta;
+        this.betaSum = betaSum;
+        this.tokensPerTopic = tokensPerTopic;
+        this.counts = counts;
+
+        smoothingCoefficients = new double[numTopics];
+        double mass = 0.0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            mass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
+            smoothingCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+        }
+        smoothingOnlyMass = mass;
+    }
+
+    /**
+     * Returns a sampler that shares the trained parameters of the inferencer.
+     */
+    static TopicSampler of(TopicInferencer inferencer) {
+        if (inferencer instanceof MappedTopicInferencer) {
+            return ((MappedTopicInferencer) inferencer).getSampler();
+        }
+        final int[][] typeTopicCounts = Inferencers.typeTopicCounts(inferencer);
+        return new TopicSampler(Inferencers.tokensPerTopic(inferencer), Inferencers.alpha(inferencer),
+                Inferencers.beta(inferencer), Inferencers.betaSum(inferencer), new Counts() {
+            public int numTypes() {
+                return typeTopicCounts.length;
+            }
+
+            public int length(int type) {
+                return typeTopicCounts[type].length;
+            }
+
+            public int get(int type, int index) {
+                return typeTopicCounts[type][index];
+            }
+        });
+    }
+
+    /**
+     * Returns the counts stored in a mapped {@link BinaryModelFormat} file:
+     * the entries of type <code>t</code> are
+     * <code>counts[offsets[t]] .. counts[offsets[t + 1] - 1]</code>.
+     */
+    static Counts mapped(final IntBuffer offsets, final IntBuffer counts) {
+        final int numTypes = offsets.limit() - 1;
+        return new Counts() {
+            public int numTypes() {
+                return numTypes;
+            }
+
+            public int length(int type) {
+                return offsets.get(type + 1) - offsets.get(type);
+            }
+
+            public int get(int type, int index) {
+                return counts.get(offsets.get(type) + index);
+            }
+        };
+    }
+
+    int getNumTopics() {
+        return numTopics;
+    }
+
+    /**
+     * Samples for all of the iterations, exactly as
+     * TopicInferencer.getSampledDistribution does.
+     */
+    double[] sample(FeatureSequence tokens, Randoms random, int numIterations, int thinning, int burnIn) {
+        return sample(tokens, random, numIterations, thinning, burnIn, 0.0, NO_DEADLINE).distribution;
+    }
+
+    /**
+     * Samples for at most <code>numIterations</code> iterations.
+     *
+     * @param tolerance stop once the L1 distance between the average of the
+     *                  samples saved so far and the average before the last
+     *                  sample is below this. Zero never stops early.
+     * @param deadline  stop after the iteration during which
+     *                  <code>System.nanoTime()</code> passes this, or
+     *                  {@link #NO_DEADLINE}.
+     */
+    Result sample(FeatureSequence tokens, Randoms random, int numIterations, int thinning, int burnIn,
+                  double tolerance, long deadline) {
+        int numTypes = counts.numTypes();
+        int docLength = tokens.size();
+        int[] topics = new int[docLength];
+        int[] localTopicCounts = new int[numTopics];
+        int[] localTopicIndex = new int[numTopics];
+        double[] cachedCoefficients = smoothingCoefficients.clone();
+
+        // Initialize all positions to the most common topic for that type.
+        for (int position = 0; position < docLength; position++) {
+            int type = tokens.getIndexAtPosition(position);
+            // Ignore out of vocabulary terms
+            if (type >= 0 && type < numTypes && counts.length(type) != 0) {
+                topics[position] = counts.get(type, 0) & topicMask;
+                localTopicCounts[topics[position]]++;
+            }
+        }
+
+        // Build an array that densely lists the topics that have non-zero counts.
+        int nonZeroTopics = 0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            if (localTopicCounts[topic] != 0) {
+                localTopicIndex[nonZeroTopics++] = topic;
+            }
+        }
+
+        // Initialize the topic count/beta sampling bucket and the coefficients
+        // for the topics this document uses.
+        double topicBetaMass = 0.0;
+        for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+            int topic = localTopicIndex[denseIndex];
+            int n = localTopicCounts[topic];
+            topicBetaMass += beta * n / (tokensPerTopic[topic] + betaSum);
+            cachedCoefficients[topic] = (alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
+        }
+
+        double[] topicTermScores = new double[numTopics];
+        double[] result = new double[numTopics];
+        double sum = 0.0;
+        int samples = 0;
+        int iteration = 0;
+        boolean converged = false;
+
+        while (iteration < numIterations) {
+            iteration++;
+            for (int position = 0; position < docLength; position++) {
+                int type = tokens.getIndexAtPosition(position);
+                if (type < 0 || type >= numTypes) {
+                    continue;
+                }
+                int length = counts.length(type);
+                if (length == 0) {
+                    continue;
+                }
+                int oldTopic = topics[position];
+
+                // Remove this token from all counts.
+                topicBetaMass -= beta * localTopicCounts[oldTopic] / (tokensPerTopic[oldTopic] + betaSum);
+                localTopicCounts[oldTopic]--;
+                if (localTopicCounts[oldTopic] == 0) {
+                    // remove the old topic from the dense index
+                    int denseIndex = 0;
+                    while (localTopicIndex[denseIndex] != oldTopic) {
+                        denseIndex++;
+                    }
+                    while (denseIndex < nonZeroTopics - 1) {
+                        localTopicIndex[denseIndex] = localTopicIndex[denseIndex + 1];
+                        denseIndex++;
+                    }
+                    nonZeroTopics--;
+                }
+                topicBetaMass += beta * localTopicCounts[oldTopic] / (tokensPerTopic[oldTopic] + betaSum);
+                cachedCoefficients[oldTopic] =
+                        (alpha[oldTopic] + localTopicCounts[oldTopic]) / (tokensPerTopic[oldTopic] + betaSum);
+
+                // Score each topic this type has been assigned to.
+                double topicTermMass = 0.0;
+                int index = 0;
+                while (index < length) {
+                    int value = counts.get(type, index);
+                    if (value <= 0) {
+                        break;
+                    }
+                    double score = cachedCoefficients[value & topicMask] * (value >> topicBits);
+                    topicTermMass += score;
+                    topicTermScores[index] = score;
+                    index++;
+                }
+
+                double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+                int newTopic = -1;
+                if (sample < topicTermMass) {
+                    int i = -1;
+                    while (sample > 0 && i < index - 1) {
+                        i++;
+                        sample -= topicTermScores[i];
+                    }
+                    newTopic = counts.get(type, Math.max(i, 0)) & topicMask;
+                } else {
+                    sample -= topicTermMass;
+                    if (sample < topicBetaMass) {
+                        sample /= beta;
+                        for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                            int topic = localTopicIndex[denseIndex];
+                            sample -= localTopicCounts[topic] / (tokensPerTopic[topic] + betaSum);
+                            if (sample <= 0.0) {
+                                newTopic = topic;
+                                break;
+                            }
+                        }
+                    } else {
+                        sample -= topicBetaMass;
+                        sample /= beta;
+                        newTopic = 0;
+                        sample -= alpha[newTopic] / (tokensPerTopic[newTopic] + betaSum);
+                        while (sample > 0.0 && newTopic < numTopics - 1) {
+                            newTopic++;
+                            sample -= alpha[newTopic] / (tokensPerTopic[newTopic] + betaSum);
+                        }
+                    }
+                }
+                if (newTopic == -1) {
+                    // rounding error at the end of the topic/beta bucket
+                    newTopic = nonZeroTopics > 0 ? localTopicIndex[nonZeroTopics - 1] : numTopics - 1;
+                }
+
+                // Add the token back with its new topic.
+                topics[position] = newTopic;
+                topicBetaMass -= beta * localTopicCounts[newTopic] / (tokensPerTopic[newTopic] + betaSum);
+                localTopicCounts[newTopic]++;
+                if (localTopicCounts[newTopic] == 1) {
+                    // insert the new topic into the dense index, keeping it sorted
+                    int denseIndex = nonZeroTopics;
+                    while (denseIndex > 0 && localTopicIndex[denseIndex - 1] > newTopic) {
+                        localTopicIndex[denseIndex] = localTopicIndex[denseIndex - 1];
+                        denseIndex--;
+                    }
+                    localTopicIndex[denseIndex] = newTopic;
+                    nonZeroTopics++;
+                }
+                cachedCoefficients[newTopic] =
+                        (alpha[newTopic] + localTopicCounts[newTopic]) / (tokensPerTopic[newTopic] + betaSum);
+                topicBetaMass += beta * localTopicCounts[newTopic] / (tokensPerTopic[newTopic] + betaSum);
+            }
+
+            if (iteration > burnIn && (iteration - burnIn) % thinning == 0) {
+                // Save a sample
+                double previousSum = sum;
+                for (int topic = 0; topic < numTopics; topic++) {
+                    sum += alpha[topic] + localTopicCounts[topic];
+                }
+                samples++;
+                // how far the normalized average moves with this sample
+                double change = 0.0;
+                for (int topic = 0; topic < numTopics; topic++) {
+                    double count = alpha[topic] + localTopicCounts[topic];
+                    if (samples > 1) {
+                        change += Math.abs((result[topic] + count) / sum - result[topic] / previousSum);
+                    }
+                    result[topic] += count;
+                }
+                if (samples > 1 && change < tolerance) {
+                    converged = true;
+                    break;
+                }
+            }
+            if (deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+
+        if (sum == 0.0) {
+            // Save at least one sample
+            for (int topic = 0; topic < numTopics; topic++) {
+                result[topic] = alpha[topic] + localTopicCounts[topic];
+                sum += result[topic];
+            }
+        }
+        for (int topic = 0; topic < numTopics; topic++) {
+            result[topic] /= sum;
+        }
+        return new Result(result, iteration, converged);
+    }
+}
@@ -19,6 +19,8 @@ import java.util.ArrayList;
 import java.util.regex.Pattern;
 
 public class TrainClassifier implements ProcessingService {
+    private static final StageTimers timers = StageTimers.forService(TrainClassifier.class);
+
     public TrainClassifier() {
     }
 
@@ -57,10 +59,11 @@ public class TrainClassifier implements ProcessingService {
         return generateMetadata();
     }
 
-    Pipe pipe;
     public String execute(String input) {
         // Step #1: Parse the input.
+        long start = System.nanoTime();
         Data data = Serializer.parse(input, Data.class);
+        timers.record(StageTimers.PARSE, start);
 
         // Step #2: Check the discriminator
         final String discriminator = data.getDiscriminator();
@@ -105,9 +108,21 @@ public class TrainClassifier implements ProcessingService {
             modelType = "NaiveBayes";
         }
 
+        // write the classifier in the binary model format instead of Java serialization?
+        boolean binary = "binary".equals(data.getParameter("format"));
+
+        // compress the classifier with gzip or deflate?
+        Object compression = data.getParameter("compression");
+        if (!ModelCompression.isSupported(compression)) {
+            String message = "Unsupported compression: " + compression;
+            return new Data<>(Discriminators.Uri.ERROR, message).asJson();
+        }
+
         // train a classifier file using the specified directory
-        pipe = buildPipe();
-        InstanceList instances = readDirectory(f);
+        start = System.nanoTime();
+        Pipe pipe = buildPipe();
+        InstanceList instances = readDirectory(f, pipe);
+        start = timers.record(StageTimers.PIPE, start);
         Classifier classifier;
         try {
             classifier = trainClassifier(instances, modelType);
@@ -116,15 +131,18 @@ public class TrainClassifier implements ProcessingService {
             String message = modelType + " is not a valid classifier trainer.";
             return new Data<>(Discriminators.Uri.ERROR, message).asJson();
         }
+        start = timers.record(StageTimers.TRAINING, start);
 
         // try to save the classifier
         try {
-            saveClassifier(classifier, new File(filePath + "/" + classifierName));
+            saveClassifier(classifier, new File(filePath + "/" + classifierName), binary,
+                    compression == null ? null : compression.toString());
         }
         catch (IOException e) {
             e.printStackTrace();
             System.out.println("Classifier file cannot be written.");
         }
+        timers.record(StageTimers.SERIALIZE, start);
 
         // success
         return new Data<>(Discriminators.Uri.TEXT, "Success").asJson();
@@ -172,11 +190,25 @@ public class TrainClassifier implements ProcessingService {
         return new SerialPipes(pipeList);
     }
 
+    /**
+     * Reads the directory through a new pipe from {@link #buildPipe()}.
+     */
     public InstanceList readDirectory(File directory) {
-        return readDirectories(new File[] {directory});
+        return readDirectory(directory, buildPipe());
     }
 
+    public InstanceList readDirectory(File directory, Pipe pipe) {
+        return readDirectories(new File[] {directory}, pipe);
+    }
+
+    /**
+     * Reads the directories through a new pipe from {@link #buildPipe()}.
+     */
     public InstanceList readDirectories(File[] directories) {
+        return readDirectories(directories, buildPipe());
+    }
+
+    public InstanceList readDirectories(File[] directories, Pipe pipe) {
 
         // Construct a file iterator, starting with the
         //  specified directories, and recursing through subdirectories.
@@ -273,9 +305,33 @@ public class TrainClassifier implements ProcessingService {
         //  Mallet is through Java serialization. Here we
         //  write the classifier object to the specified file.
 
-        ObjectOutputStream oos =
-                new ObjectOutputStream(new FileOutputStream(serializedFile));
-        oos.writeObject (classifier);
-        oos.close();
+        saveClassifier(classifier, serializedFile, false);
+    }
+
+    public void saveClassifier(Classifier classifier, File file, boolean binary)
+            throws IOException {
+        saveClassifier(classifier, file, binary, null);
+    }
+
+    public void saveClassifier(Classifier classifier, File file, boolean binary, String compression)
+            throws IOException {
+
+        // The standard method for saving classifiers in
+        //  Mallet is through Java serialization. The binary
+        //  model format is faster to load, and either can be
+        //  compressed for models kept on network storage.
+        OutputStream out = ModelCompression.compress(
+                new BufferedOutputStream(new FileOutputStream(file), 64 * 1024), compression);
+        try {
+            if (binary) {
+                BinaryModelFormat.write(classifier, out);
+            } else {
+                ObjectOutputStream oos = new ObjectOutputStream(out);
+                oos.writeObject(classifier);
+                oos.flush();
+            }
+        } finally {
+            out.close();
+        }
     }
 }
@@ -18,9 +18,12 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class TrainSequenceTagging implements ProcessingService {
+    private static final StageTimers timers = StageTimers.forService(TrainSequenceTagging.class);
+
 
     public TrainSequenceTagging() {
     }
@@ -60,10 +63,11 @@ public class TrainSequenceTagging implements ProcessingService {
         return generateMetadata();
     }
 
-    ArrayList<String> trainingFiles = new ArrayList<>();
     public String execute(String input) {
         // Step #1: Parse the input.
+        long start = System.nanoTime();
         Data data = Serializer.parse(input, Data.class);
+        timers.record(StageTimers.PARSE, start);
 
         // Step #2: Check the discriminator
         final String discriminator = data.getDiscriminator();
@@ -83,9 +87,17 @@ public class TrainSequenceTagging implements ProcessingService {
             return new Data<>(Discriminators.Uri.ERROR, "File already exists").asJson();
         }
 
+        // SimpleTagger writes the model uncompressed; it is compressed once
+        // training is complete
+        Object compression = data.getParameter("compression");
+        if (!ModelCompression.isSupported(compression)) {
+            return new Data<>(Discriminators.Uri.ERROR, "Unsupported compression: " + compression).asJson();
+        }
+
         // Populate an ArrayList with the paths to all the .txt files
         // in the specified directory used for training
-        listFilesForFolder(new File(folder));
+        ArrayList<String> trainingFiles = new ArrayList<>();
+        listFilesForFolder(new File(folder), trainingFiles);
 
         File[] sortedTrainingFiles = new File[trainingFiles.size()];
         for (int i = 0; i < trainingFiles.size(); i++){
@@ -96,42 +108,75 @@ public class TrainSequenceTagging implements ProcessingService {
             System.out.println(f);
         }
 
-        // train first file
-        try {
-            SimpleTagger.main(
-                    new String[]{"--train", "true",
-                            "--model-file", path + "/" + modelName,
-                            sortedTrainingFiles[0].getPath()});
-        } catch (Exception e){
-            e.printStackTrace();
-            return new Data<>(Discriminators.Uri.ERROR, "Error while training data").asJson();
-        }
-
-        int numFiles = sortedTrainingFiles.length;
-
-        // feed rest of the files to the trainer one at a time
-        for (int i = 1; i < numFiles; i++) {
+        // SimpleTagger keeps its command line options in static fields, so
+        // only one model can be trained at a time. It pipes the training
+        // files itself, so piping is part of training.
+        start = System.nanoTime();
+        synchronized (SimpleTagger.class) {
+            // train first file
             try {
                 SimpleTagger.main(
                         new String[]{"--train", "true",
-                                "--continue-training", "true",
                                 "--model-file", path + "/" + modelName,
-                                sortedTrainingFiles[i].getPath()});
+                                sortedTrainingFiles[0].getPath()});
             } catch (Exception e){
                 e.printStackTrace();
                 return new Data<>(Discriminators.Uri.ERROR, "Error while training data").asJson();
             }
+
+            int numFiles = sortedTrainingFiles.length;
+
+            // feed rest of the files to the trainer one at a time
+            for (int i = 1; i < numFiles; i++) {
+                try {
+                    SimpleTagger.main(
+                            new String[]{"--train", "true",
+                                    "--continue-training", "true",
+                                    "--model-file", path + "/" + modelName,
+                                    sortedTrainingFiles[i].getPath()});
+                } catch (Exception e){
+                    e.printStackTrace();
+                    return new Data<>(Discriminators.Uri.ERROR, "Error while training data").asJson();
+                }
+            }
         }
+        start = timers.record(StageTimers.TRAINING, start);
+
+        // SimpleTagger can only continue training from a Java serialized model,
+        // so convert the model once training is complete
+        if ("binary".equals(data.getParameter("format"))) {
+            try {
+                BinaryModelFormat.convert(file, file);
+            } catch (IOException | ClassNotFoundException e) {
+                e.printStackTrace();
+                return new Data<>(Discriminators.Uri.ERROR, "Unable to write the binary model").asJson();
+            }
+        }
+        try {
+            ModelCompression.compress(file, compression);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Data<>(Discriminators.Uri.ERROR, "Unable to compress the model").asJson();
+        }
+        timers.record(StageTimers.SERIALIZE, start);
 
         // Success
         return new Data<>(Discriminators.Uri.TEXT, "Success").asJson();
     }
 
 
+    /**
+     * Lists the training files of the folder. The list is no longer kept by
+     * the service, so use {@link #listFilesForFolder(File, List)} to get it.
+     */
     public void listFilesForFolder(final File folder) {
+        listFilesForFolder(folder, new ArrayList<String>());
+    }
+
+    public void listFilesForFolder(final File folder, List<String> trainingFiles) {
         for (final File fileEntry : folder.listFiles()) {
             if (fileEntry.isDirectory()) {
-                listFilesForFolder(fileEntry);
+                listFilesForFolder(fileEntry, trainingFiles);
             } else {
                 String filePath = fileEntry.getPath();
                 String extension = filePath.substring(
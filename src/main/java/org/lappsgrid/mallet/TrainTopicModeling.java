@@ -19,6 +19,8 @@ import java.util.regex.Pattern;
 
 public class TrainTopicModeling implements ProcessingService
 {
+    private static final StageTimers timers = StageTimers.forService(TrainTopicModeling.class);
+
     public TrainTopicModeling() { }
 
     private String generateMetadata() {
@@ -56,10 +58,11 @@ public class TrainTopicModeling implements ProcessingService
         return generateMetadata();
     }
 
-    Pipe pipe;
     public String execute(String input) {
         // Step #1: Parse the input.
+        long start = System.nanoTime();
         Data data = Serializer.parse(input, Data.class);
+        timers.record(StageTimers.PARSE, start);
 
         // Step #2: Check the discriminator
         final String discriminator = data.getDiscriminator();
@@ -68,19 +71,25 @@ public class TrainTopicModeling implements ProcessingService
             return input;
         }
 
+        // write the inferencer in the binary model format instead of Java serialization?
+        boolean binary = "binary".equals(data.getParameter("format"));
+
+        // compress the inferencer with gzip or deflate? Checked before training,
+        // which can take a long time
+        Object compression = data.getParameter("compression");
+        if (!ModelCompression.isSupported(compression)) {
+            return new Data<>(Discriminators.Uri.ERROR,
+                    "Unsupported compression: " + compression).asJson();
+        }
+
         // Create a series of pipes to process the training files
-        ArrayList<Pipe> pipeList = new ArrayList<>();
-        pipeList.add(new Input2CharSequence("UTF-8"));
-        // Pipes: lowercase, tokenize, remove stopwords, map to features
-        pipeList.add( new CharSequenceLowercase() );
-        pipeList.add( new CharSequence2TokenSequence(Pattern.compile("\\p{L}[\\p{L}\\p{P}]+\\p{L}")) );
-        pipeList.add( new TokenSequenceRemoveStopwords());
-        pipeList.add( new TokenSequence2FeatureSequence());
-        pipe = new SerialPipes(pipeList);
+        Pipe pipe = buildPipe();
 
         // put the directory of files used for training through the pipes
         String directory = data.getParameter("directory").toString();
-        InstanceList instances = readDirectory(new File(directory));
+        start = System.nanoTime();
+        InstanceList instances = readDirectory(new File(directory), pipe);
+        timers.record(StageTimers.PIPE, start);
 
         // create a topic to be trained
         int numberOfTopics = (Integer) data.getParameter("numTopics");
@@ -88,6 +97,7 @@ public class TrainTopicModeling implements ProcessingService
         topicModel.addInstances(instances);
 
         // train the model
+        start = System.nanoTime();
         try {
             topicModel.estimate();
         } catch (IOException e){
@@ -95,6 +105,7 @@ public class TrainTopicModeling implements ProcessingService
             return new Data<>(Discriminators.Uri.ERROR,
                     "Unable to train the model").asJson();
         }
+        start = timers.record(StageTimers.TRAINING, start);
 
         // write topic keys file
         String path = data.getParameter("path").toString();
@@ -110,26 +121,57 @@ public class TrainTopicModeling implements ProcessingService
 
         // write the .inferencer file
         String inferencerName = data.getParameter("inferencerName").toString();
-        try {
-            ObjectOutputStream oos =
-                    new ObjectOutputStream (new FileOutputStream (path + "/" + inferencerName));
-            oos.writeObject (topicModel.getInferencer());
-            oos.close();
+        try (OutputStream out = ModelCompression.compress(new BufferedOutputStream(
+                new FileOutputStream(path + "/" + inferencerName), 64 * 1024), compression)) {
+            if (binary) {
+                BinaryModelFormat.write(topicModel.getInferencer(), out);
+            } else {
+                ObjectOutputStream oos = new ObjectOutputStream(out);
+                oos.writeObject(topicModel.getInferencer());
+                oos.flush();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             return new Data<>(Discriminators.Uri.ERROR,
                     "Unable to write the inferencer to " + path + "/" + inferencerName).asJson();
         }
+        // writing the topic keys and the inferencer
+        timers.record(StageTimers.SERIALIZE, start);
 
         // Success
         return new Data<>(Discriminators.Uri.TEXT, "Success").asJson();
     }
 
+    public Pipe buildPipe() {
+        ArrayList<Pipe> pipeList = new ArrayList<>();
+        pipeList.add(new Input2CharSequence("UTF-8"));
+        // Pipes: lowercase, tokenize, remove stopwords, map to features
+        pipeList.add( new CharSequenceLowercase() );
+        pipeList.add( new CharSequence2TokenSequence(Pattern.compile("\\p{L}[\\p{L}\\p{P}]+\\p{L}")) );
+        pipeList.add( new TokenSequenceRemoveStopwords());
+        pipeList.add( new TokenSequence2FeatureSequence());
+        return new SerialPipes(pipeList);
+    }
+
+    /**
+     * Reads the directory through a new pipe from {@link #buildPipe()}.
+     */
     public InstanceList readDirectory(File directory) {
-        return readDirectories(new File[] {directory});
+        return readDirectory(directory, buildPipe());
+    }
+
+    public InstanceList readDirectory(File directory, Pipe pipe) {
+        return readDirectories(new File[] {directory}, pipe);
     }
 
+    /**
+     * Reads the directories through a new pipe from {@link #buildPipe()}.
+     */
     public InstanceList readDirectories(File[] directories) {
+        return readDirectories(directories, buildPipe());
+    }
+
+    public InstanceList readDirectories(File[] directories, Pipe pipe) {
 
         // Construct a file iterator, starting with the
         //  specified directories, and recursing through subdirectories.
@@ -0,0 +1,109 @@
+package org.lappsgrid.mallet;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestAdmissionControl {
+
+    private static Future<Boolean> admit(ExecutorService threads, final AdmissionControl admission) {
+        return threads.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return admission.admit();
+            }
+        });
+    }
+
+    private static void awaitQueueLength(AdmissionControl admission, int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (admission.getQueueLength() != length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(length, admission.getQueueLength());
+    }
+
+    @Test
+    public void testQueueing() throws Exception {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            AdmissionControl admission = new AdmissionControl(1, 1, 10000);
+            assertTrue(admission.admit());
+
+            // the second request waits for the first, the third is rejected
+            Future<Boolean> second = admit(threads, admission);
+            awaitQueueLength(admission, 1);
+            assertFalse(admission.admit());
+            assertEquals(1, admission.getRejected());
+
+            admission.release();
+            assertTrue(second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, admission.getInFlight());
+            assertEquals(0, admission.getQueueLength());
+            assertEquals(2, admission.getAdmitted());
+            assertEquals(1, admission.getQueued());
+            admission.release();
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testArrivalOrder() throws Exception {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            final AdmissionControl admission = new AdmissionControl(1, 8, 10000);
+            assertTrue(admission.admit());
+
+            // every request notes its turn and makes way for the next one
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            List<Future<Boolean>> waiting = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final int request = i;
+                waiting.add(threads.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        if (!admission.admit()) {
+                            return false;
+                        }
+                        order.add(request);
+                        admission.release();
+                        return true;
+                    }
+                }));
+                awaitQueueLength(admission, i + 1);
+            }
+
+            admission.release();
+            for (Future<Boolean> request : waiting) {
+                assertTrue(request.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), order);
+            assertEquals(0, admission.getInFlight());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueueWait() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 20);
+        assertTrue(admission.admit());
+        assertFalse(admission.admit());
+        assertEquals(1, admission.getTimedOut());
+        assertEquals(0, admission.getQueueLength());
+
+        // no limit
+        admission.setMaxInFlight(0);
+        assertTrue(admission.admit());
+        assertEquals(2, admission.getInFlight());
+    }
+}
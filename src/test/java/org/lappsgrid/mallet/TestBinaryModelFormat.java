@@ -0,0 +1,116 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.SparseVector;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class TestBinaryModelFormat {
+
+    private Object deserialize(String resource) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(this.getClass().getResourceAsStream(resource))) {
+            return ois.readObject();
+        }
+    }
+
+    private Object roundTrip(Object model) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryModelFormat.write(model, bytes);
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue("Binary model not detected", BinaryModelFormat.isBinary(in));
+        return BinaryModelFormat.read(in);
+    }
+
+    @Test
+    public void testInferencerRoundTrip() throws Exception {
+        TopicInferencer original = (TopicInferencer) deserialize("/masc_500k_texts(blog10topics).inferencer");
+        TopicInferencer copy = (TopicInferencer) roundTrip(original);
+
+        assertArrayEquals(Inferencers.tokensPerTopic(original), Inferencers.tokensPerTopic(copy));
+        assertArrayEquals(Inferencers.alpha(original), Inferencers.alpha(copy), 0.0);
+        assertEquals(Inferencers.beta(original), Inferencers.beta(copy), 0.0);
+        int[][] expected = Inferencers.typeTopicCounts(original);
+        int[][] actual = Inferencers.typeTopicCounts(copy);
+        assertEquals(expected.length, actual.length);
+        for (int type = 0; type < expected.length; type++) {
+            assertArrayEquals(expected[type], actual[type]);
+        }
+        assertEquals(Inferencers.alphabet(original).size(), Inferencers.alphabet(copy).size());
+        assertEquals(Inferencers.alphabet(original).lookupObject(0), Inferencers.alphabet(copy).lookupObject(0));
+    }
+
+    @Test
+    public void testCrfRoundTrip() throws Exception {
+        CRF original = (CRF) deserialize("/masc_500k_texts_word_by_word.model");
+        CRF copy = (CRF) roundTrip(original);
+
+        assertEquals(original.numStates(), copy.numStates());
+        assertEquals(original.getInputAlphabet().size(), copy.getInputAlphabet().size());
+        assertSame("Pipe and CRF no longer share an alphabet",
+                copy.getInputAlphabet(), copy.getInputPipe().getDataAlphabet());
+
+        // the weights are rebuilt from blocks of numbers
+        CRF.Factors expected = original.getParameters();
+        CRF.Factors actual = copy.getParameters();
+        assertArrayEquals(expected.defaultWeights, actual.defaultWeights, 0.0);
+        assertArrayEquals(expected.initialWeights, actual.initialWeights, 0.0);
+        assertArrayEquals(expected.finalWeights, actual.finalWeights, 0.0);
+        assertEquals(expected.weights.length, actual.weights.length);
+        for (int i = 0; i < expected.weights.length; i++) {
+            SparseVector weights = actual.weights[i];
+            assertSame(expected.weights[i].getClass(), weights.getClass());
+            assertEquals(expected.weights[i].numLocations(), weights.numLocations());
+            for (int location = 0; location < weights.numLocations(); location++) {
+                assertEquals(expected.weights[i].indexAtLocation(location), weights.indexAtLocation(location));
+                assertEquals(expected.weights[i].valueAtLocation(location), weights.valueAtLocation(location), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testMappedInferencer() throws Exception {
+        File file = File.createTempFile("model", ".inferencer");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            BinaryModelFormat.write(deserialize("/masc_500k_texts(blog10topics).inferencer"), out);
+        }
+        MappedTopicInferencer mapped = MappedTopicInferencer.open(file);
+        assertEquals(10, mapped.getNumTopics());
+
+        Alphabet alphabet = mapped.getAlphabet();
+        FeatureSequence tokens = new FeatureSequence(alphabet);
+        for (int type = 0; type < 20; type++) {
+            tokens.add(type);
+        }
+        Instance instance = new Instance(tokens, null, null, null);
+        double[] first = mapped.getSampledDistribution(instance, 50, 5, 10, 42);
+        double[] second = mapped.getSampledDistribution(instance, 50, 5, 10, 42);
+        assertArrayEquals("Seeded sampling is not repeatable", first, second, 0.0);
+        double sum = 0.0;
+        for (double p : first) {
+            sum += p;
+        }
+        assertEquals(1.0, sum, 1e-9);
+    }
+
+    @Test
+    public void testSerializedModelNotDetected() throws Exception {
+        InputStream in = new BufferedInputStream(
+                this.getClass().getResourceAsStream("/masc_500k_texts_word_by_word.model"));
+        assertFalse(BinaryModelFormat.isBinary(in));
+    }
+}
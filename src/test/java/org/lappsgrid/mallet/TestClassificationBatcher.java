@@ -0,0 +1,196 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.classify.Classification;
+import cc.mallet.classify.Classifier;
+import cc.mallet.types.Instance;
+import cc.mallet.types.Labeling;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class TestClassificationBatcher {
+
+    private static final String[] TEXTS = {
+            "The government announced a new policy on wildlife protection and support for local schools.",
+            "The team won the game in the last minute after a long season of injuries.",
+            "Stocks fell sharply as investors worried about interest rates and the price of oil.",
+            "I spent the weekend reading old letters from my grandmother and baking bread."
+    };
+
+    private Classifier classifier() throws Exception {
+        return ModelCache.getInstance().get(
+                this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier"), Classifier.class);
+    }
+
+    // the same labels, in the same order, with the same values
+    private static void assertSameLabeling(Labeling expected, Labeling actual) {
+        assertEquals(expected.numLocations(), actual.numLocations());
+        for (int rank = 0; rank < expected.numLocations(); rank++) {
+            assertEquals(expected.getLabelAtRank(rank), actual.getLabelAtRank(rank));
+            assertEquals(expected.getValueAtRank(rank), actual.getValueAtRank(rank), 1e-9);
+        }
+    }
+
+    // classifies like the given classifier, counting down calls on every
+    // document and waiting for release before classifying it
+    private static Classifier blocking(final Classifier classifier, final CountDownLatch calls,
+                                       final CountDownLatch release, final boolean fail) {
+        return new Classifier(classifier.getInstancePipe()) {
+            public Classification classify(Instance instance) {
+                calls.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (fail) {
+                    throw new IllegalStateException("Unable to classify");
+                }
+                return classifier.classify(instance);
+            }
+        };
+    }
+
+    private static Future<Classification> submit(ExecutorService threads, final ClassificationBatcher batcher,
+                                                 final Classifier classifier, final String text) {
+        return threads.submit(new Callable<Classification>() {
+            public Classification call() throws Exception {
+                return batcher.classify(classifier, text);
+            }
+        });
+    }
+
+    // waits until the latch has been counted down to the count
+    private static void awaitCount(CountDownLatch latch, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (latch.getCount() > count) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsShareABatch() throws Exception {
+        Classifier classifier = classifier();
+        // classified one at a time, before any batching
+        List<Labeling> expected = new ArrayList<>();
+        for (String text : TEXTS) {
+            expected.add(classifier.classify(text).getLabeling());
+        }
+        CountDownLatch calls = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Classifier slow = blocking(classifier, calls, release, false);
+        // a long window, so the batch is closed by its last document
+        ClassificationBatcher batcher = new ClassificationBatcher(60000, TEXTS.length - 1, 60000);
+        ExecutorService threads = Executors.newFixedThreadPool(TEXTS.length);
+        try {
+            // the first document finds the classifier idle and is classified alone
+            List<Future<Classification>> results = new ArrayList<>();
+            results.add(submit(threads, batcher, slow, TEXTS[0]));
+            awaitCount(calls, 1);
+            // the others wait for it, in one batch that is classified once full
+            for (int i = 1; i < TEXTS.length; i++) {
+                results.add(submit(threads, batcher, slow, TEXTS[i]));
+            }
+            assertTrue(calls.await(1, TimeUnit.MINUTES));
+            release.countDown();
+            for (int i = 0; i < TEXTS.length; i++) {
+                // every request gets the classification of its own document
+                assertSameLabeling(expected.get(i), results.get(i).get(1, TimeUnit.MINUTES).getLabeling());
+            }
+            assertEquals(2, batcher.getBatches());
+            assertEquals(TEXTS.length, batcher.getDocuments());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIdleClassifierDoesNotWait() throws Exception {
+        Classifier classifier = classifier();
+        Labeling expected = classifier.classify(TEXTS[0]).getLabeling();
+        ClassificationBatcher batcher = new ClassificationBatcher(60000, 32, 60000);
+        assertTrue(batcher.isEnabled());
+        // nobody else is waiting, so the document is classified without waiting out the window
+        long start = System.currentTimeMillis();
+        Classification classification = batcher.classify(classifier, TEXTS[0]);
+        assertTrue("Waited out the window", System.currentTimeMillis() - start < 30000);
+        assertSameLabeling(expected, classification.getLabeling());
+        assertEquals(1, batcher.getBatches());
+
+        assertFalse(new ClassificationBatcher(0, 32, 60000).isEnabled());
+    }
+
+    @Test
+    public void testFailureReachesTheBatch() throws Exception {
+        CountDownLatch calls = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Classifier failing = blocking(classifier(), calls, release, true);
+        ClassificationBatcher batcher = new ClassificationBatcher(60000, 2, 60000);
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Classification>> results = new ArrayList<>();
+            results.add(submit(threads, batcher, failing, TEXTS[0]));
+            awaitCount(calls, 1);
+            results.add(submit(threads, batcher, failing, TEXTS[1]));
+            results.add(submit(threads, batcher, failing, TEXTS[2]));
+            assertTrue(calls.await(1, TimeUnit.MINUTES));
+            release.countDown();
+            for (Future<Classification> result : results) {
+                try {
+                    result.get(1, TimeUnit.MINUTES);
+                    fail("A document of a failed batch was classified");
+                } catch (ExecutionException e) {
+                    // the request gets the classifier's exception, wrapped by the batch and by the future
+                    assertTrue(e.getCause() instanceof ExecutionException);
+                    assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+                }
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        CountDownLatch calls = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Classifier slow = blocking(classifier(), calls, release, false);
+        ClassificationBatcher batcher = new ClassificationBatcher(1000, 2, 100);
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        try {
+            submit(threads, batcher, slow, TEXTS[0]);
+            awaitCount(calls, 1);
+            // the request that fills the batch classifies it and is held up,
+            // so the other request in the batch gives up on it
+            Future<Classification> a = submit(threads, batcher, slow, TEXTS[1]);
+            Future<Classification> b = submit(threads, batcher, slow, TEXTS[2]);
+            assertTrue(calls.await(1, TimeUnit.MINUTES));
+            long deadline = System.currentTimeMillis() + 60000;
+            while (!a.isDone() && !b.isDone()) {
+                assertTrue("Timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            try {
+                (a.isDone() ? a : b).get();
+                fail("The request did not time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        } finally {
+            release.countDown();
+            threads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.lappsgrid.mallet;
+
+import org.junit.Test;
+import org.lappsgrid.api.ProcessingService;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.DataContainer;
+import org.lappsgrid.serialization.lif.Container;
+import org.lappsgrid.serialization.lif.View;
+import org.lappsgrid.vocabulary.Features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// One instance of each service serves many threads at once, and every request
+// must get the response it gets when it is the only one.
+public class TestConcurrency {
+
+    private static final int THREADS = 8;
+    private static final int REQUESTS = 48;
+
+    private static final String[] TEXTS = {
+            "The government announced a new policy on wildlife protection and support for local schools.",
+            "The team won the game in the last minute after a long season of injuries.",
+            "Stocks fell sharply as investors worried about interest rates and the price of oil.",
+            "I spent the weekend reading old letters from my grandmother and baking bread."
+    };
+
+    private String input(int i) {
+        Data input;
+        switch (i % 3) {
+            case 0:
+                input = new Data<>(Discriminators.Uri.TEXT, TEXTS[i % TEXTS.length]);
+                input.setParameter("inferencer", this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"));
+                input.setParameter("keys", this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"));
+                // a different seed and number of iterations for every request
+                input.setParameter("seed", i);
+                input.setParameter("numIterations", 20 + i);
+                return input.asJson();
+            case 1:
+                input = new Data<>(Discriminators.Uri.TEXT, TEXTS[i % TEXTS.length]);
+                input.setParameter("classifier", this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier"));
+                input.setParameter("topK", 1 + i % 4);
+                return input.asJson();
+            default:
+                Container container = new Container();
+                String text = TEXTS[i % TEXTS.length];
+                container.setText(text);
+                View view = container.newView();
+                view.addContains(Discriminators.Uri.TOKEN, "test", "tokens");
+                int start = 0;
+                int n = 0;
+                for (String word : text.substring(0, text.length() - 1).split(" ")) {
+                    view.newAnnotation("tok" + n++, Discriminators.Uri.TOKEN, start, start + word.length())
+                            .addFeature(Features.Token.WORD, word);
+                    start += word.length() + 1;
+                }
+                return new DataContainer(container).asJson();
+        }
+    }
+
+    @Test
+    public void testServicesAreReentrant() throws Exception {
+        final ProcessingService[] services = {
+                new TopicModeling(), new DocumentClassification(), new SequenceTagging()
+        };
+        final String[] inputs = new String[REQUESTS];
+        String[] expected = new String[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            inputs[i] = input(i);
+            expected[i] = services[i % 3].execute(inputs[i]);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+        try {
+            // in reverse, so that requests of every kind overlap
+            for (int i = REQUESTS - 1; i >= 0; i--) {
+                final int request = i;
+                results.add(0, executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return services[request % 3].execute(inputs[request]);
+                    }
+                }));
+            }
+            start.countDown();
+            for (int i = 0; i < REQUESTS; i++) {
+                String result = results.get(i).get(2, TimeUnit.MINUTES);
+                assertFalse(result, result.contains(Discriminators.Uri.ERROR));
+                assertEquals("request " + i, expected[i], result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
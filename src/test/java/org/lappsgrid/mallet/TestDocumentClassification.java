@@ -13,8 +13,10 @@ import org.lappsgrid.metadata.IOSpecification;
 import org.lappsgrid.metadata.ServiceMetadata;
 import org.lappsgrid.serialization.Data;
 import org.lappsgrid.serialization.Serializer;
+import org.lappsgrid.serialization.lif.Container;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -102,11 +104,70 @@ public class TestDocumentClassification {
         Data input = new Data<>(Discriminators.Uri.TEXT, text);
 
         // add parameters
-        input.setParameter("classifier", this.getClass().getResource("/masc_500k_texts(MaxEnt).classifier"));
+        input.setParameter("classifier", this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier"));
 
         // call `execute()` with jsonized input,
         String string = this.service.execute(input.asJson());
+        Data result = Serializer.parse(string, Data.class);
+        assertFalse(result.getPayload().toString(), Discriminators.Uri.ERROR.equals(result.getDiscriminator()));
 
         System.out.println(string);
     }
+
+    @Test
+    public void testExecuteBatch() {
+        // a batch mixes plain texts and LIF containers
+        Container container = new Container();
+        container.setText("The Smart Completion feature is aware of the expected type and data flow, and offers the options relevant to the context.");
+        List<Object> documents = new ArrayList<>();
+        documents.add("When you access Basic Completion by pressing Ctrl+Space, you get basic suggestions for variables, types, methods, expressions, and so on.");
+        documents.add(container);
+        documents.add("To overwrite the identifier at the caret, instead of just inserting the suggestion, press Tab.");
+
+        // wrap the documents into `Data`
+        Object classifier = this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier");
+        Data input = new Data<>(Discriminators.Uri.LAPPS, documents);
+        input.setParameter("classifier", classifier);
+
+        // call `execute()` with jsonized input,
+        String string = this.service.execute(input.asJson());
+        Data result = Serializer.parse(string, Data.class);
+        assertFalse(result.getPayload().toString(), Discriminators.Uri.ERROR.equals(result.getDiscriminator()));
+
+        // one container per document, in the order they were sent, each the
+        // one the document gets when it is sent on its own
+        List containers = (List) result.getPayload();
+        assertEquals(documents.size(), containers.size());
+        for (int i = 0; i < documents.size(); i++) {
+            Object document = documents.get(i);
+            Data single = document instanceof Container
+                    ? new Data<>(Discriminators.Uri.LAPPS, document)
+                    : new Data<>(Discriminators.Uri.TEXT, document);
+            single.setParameter("classifier", classifier);
+            Data expected = Serializer.parse(this.service.execute(single.asJson()), Data.class);
+            assertEquals(expected.getPayload(), containers.get(i));
+            assertEquals(1, new Container((Map) containers.get(i)).getViews().size());
+        }
+    }
+
+    @Test
+    public void testExecuteCompact() {
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("classifier", this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier"));
+        input.setParameter("topK", 3);
+        String pretty = this.service.execute(input.asJson());
+
+        input.setParameter("compact", true);
+        String compact = this.service.execute(input.asJson());
+        assertFalse("Compact output is indented", compact.contains("\n"));
+
+        // the same document, apart from the parameters
+        Data expected = Serializer.parse(pretty, Data.class);
+        Data actual = Serializer.parse(compact, Data.class);
+        assertEquals(Discriminators.Uri.JSON, actual.getDiscriminator());
+        assertEquals(expected.getDiscriminator(), actual.getDiscriminator());
+        assertEquals(expected.getPayload(), actual.getPayload());
+        assertFalse(new Container((Map) actual.getPayload()).getView(0).getAnnotations().isEmpty());
+    }
 }
@@ -0,0 +1,106 @@
+package org.lappsgrid.mallet;
+
+import org.junit.Test;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestInferenceExecutor {
+
+    private static Callable<String> waitFor(final CountDownLatch latch, final String response) {
+        return new Callable<String>() {
+            public String call() throws Exception {
+                latch.await();
+                return response;
+            }
+        };
+    }
+
+    @Test
+    public void testLimitsArePerModel() throws Exception {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            InferenceExecutor executor = new InferenceExecutor(threads, 1, 1, 8);
+            CountDownLatch slow = new CountDownLatch(1);
+            CompletableFuture<String> running = executor.submit("slow", waitFor(slow, "first"));
+            CompletableFuture<String> queued = executor.submit("slow", waitFor(slow, "second"));
+            CompletableFuture<String> rejected = executor.submit("slow", waitFor(slow, "third"));
+            assertEquals(2, executor.getPending("slow"));
+
+            // the queue of the slow model is full
+            assertTrue(rejected.isDone());
+            assertTrue(rejected.get().contains(Discriminators.Uri.ERROR));
+
+            // other models are not held up
+            String fast = executor.submit("fast", waitFor(new CountDownLatch(0), "fast"))
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals("fast", fast);
+            assertFalse(queued.isDone());
+
+            slow.countDown();
+            assertEquals("first", running.get(10, TimeUnit.SECONDS));
+            assertEquals("second", queued.get(10, TimeUnit.SECONDS));
+            assertEquals(0, executor.getPending("slow"));
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRunningIsLimitedOverAllModels() throws Exception {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            InferenceExecutor executor = new InferenceExecutor(threads, 1, 1, 2);
+            CountDownLatch slow = new CountDownLatch(1);
+            CompletableFuture<String> a = executor.submit("a", waitFor(slow, "a"));
+            CompletableFuture<String> b = executor.submit("b", waitFor(slow, "b"));
+            // a third model has to wait for a place, even though it has none running
+            CompletableFuture<String> c = executor.submit("c", waitFor(new CountDownLatch(0), "c"));
+            assertEquals(2, executor.getRunning());
+            assertFalse(c.isDone());
+            assertEquals(1, executor.getPending("c"));
+
+            slow.countDown();
+            assertEquals("a", a.get(10, TimeUnit.SECONDS));
+            assertEquals("b", b.get(10, TimeUnit.SECONDS));
+            assertEquals("c", c.get(10, TimeUnit.SECONDS));
+            assertEquals(0, executor.getRunning());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testModelIdentity() throws Exception {
+        URL defaultModel = new URL("file:/models/default.classifier");
+        assertEquals(InferenceExecutor.model("file:/models/a.classifier", defaultModel),
+                InferenceExecutor.model("file:/models/x/../a.classifier", defaultModel));
+        assertEquals(defaultModel.toExternalForm(), InferenceExecutor.model(null, defaultModel));
+        assertEquals(InferenceExecutor.model("not a url", defaultModel),
+                InferenceExecutor.model("neither is this", defaultModel));
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("classifier", this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier"));
+        DocumentClassification service = new DocumentClassification();
+        String expected = service.execute(input.asJson());
+        assertEquals(expected, service.executeAsync(input.asJson()).get(1, TimeUnit.MINUTES));
+
+        // parse errors are reported without queueing the request
+        CompletableFuture<String> error = service.executeAsync("{");
+        assertTrue(error.isDone());
+        assertTrue(error.get().contains(Discriminators.Uri.ERROR));
+    }
+}
@@ -0,0 +1,67 @@
+package org.lappsgrid.mallet;
+
+import org.junit.Test;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.DataContainer;
+import org.lappsgrid.serialization.Serializer;
+import org.lappsgrid.serialization.lif.Container;
+import org.lappsgrid.serialization.lif.View;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestLifReader {
+
+    private Container container() {
+        Container container = new Container();
+        container.setText("Don't count the days. Make the days count.");
+        View tokens = container.newView();
+        tokens.addContains(Discriminators.Uri.TOKEN, "test", "tokens");
+        tokens.newAnnotation("tok0", Discriminators.Uri.TOKEN, 0, 5).addFeature("word", "Don't");
+        View sentences = container.newView();
+        sentences.addContains(Discriminators.Uri.SENTENCE, "test", "sentences");
+        sentences.newAnnotation("s0", Discriminators.Uri.SENTENCE, 0, 21);
+        return container;
+    }
+
+    @Test
+    public void testViewsArePassedThrough() throws Exception {
+        Data input = new DataContainer(container());
+        input.setParameter("topK", 3);
+
+        Data<Object> data = LifReader.parse(input.asJson());
+        assertEquals(input.getDiscriminator(), data.getDiscriminator());
+        assertEquals(3, data.getParameter("topK"));
+
+        LifDocument document = (LifDocument) data.getPayload();
+        assertEquals("Don't count the days. Make the days count.", document.getText());
+        assertEquals(2, document.getViewCount());
+
+        // every view is the same JSON as it was sent
+        Map expected = Serializer.parse(input.asJson(), Map.class);
+        List views = (List) ((Map) expected.get("payload")).get("views");
+        for (int i = 0; i < views.size(); i++) {
+            assertEquals(views.get(i), Serializer.parse(document.getRawView(i), Map.class));
+        }
+
+        View sentences = document.findViewThatContains(Discriminators.Uri.SENTENCE);
+        assertEquals("s0", sentences.getAnnotations().get(0).getId());
+        assertNull(document.findViewThatContains(Discriminators.Uri.POS));
+
+        // the rebuilt container is the one that was sent
+        assertEquals(Serializer.toJson(container()), Serializer.toJson(document.toContainer()));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Data input = new Data<>(Discriminators.Uri.TEXT, Arrays.asList("one", container()));
+        List documents = (List) LifReader.parse(input.asJson()).getPayload();
+        assertEquals(2, documents.size());
+        assertEquals("one", documents.get(0));
+        assertEquals(2, ((LifDocument) documents.get(1)).getViewCount());
+    }
+}
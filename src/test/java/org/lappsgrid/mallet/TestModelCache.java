@@ -0,0 +1,199 @@
+package org.lappsgrid.mallet;
+
+import cc.mallet.classify.Classifier;
+import cc.mallet.topics.TopicInferencer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TestModelCache {
+
+    protected ModelCache cache;
+    protected URL url;
+
+    @Before
+    public void setUp() {
+        cache = new ModelCache(2, Long.MAX_VALUE);
+        url = this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer");
+    }
+
+    @Test
+    public void testHitReturnsSameInstance() throws Exception {
+        TopicInferencer first = cache.get(url, TopicInferencer.class);
+        TopicInferencer second = cache.get(url, TopicInferencer.class);
+        assertSame("Cached inferencer was not reused", first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertTrue("Model size was not recorded", cache.getBytes() > 0);
+    }
+
+    @Test
+    public void testEvictsWhenOverBudget() throws Exception {
+        URL crf = this.getClass().getResource("/masc_500k_texts_word_by_word.model");
+        cache.get(url, TopicInferencer.class);
+        cache.get(crf, Object.class);
+        long largest = 0;
+        for (ModelUsage model : cache.getModels()) {
+            largest = Math.max(largest, model.getBytes());
+        }
+        cache.clear();
+
+        cache.setMaxBytes(largest);
+        cache.get(url, TopicInferencer.class);
+        cache.get(crf, Object.class);
+        assertEquals(1, cache.getModelCount());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testReportsModelFootprint() throws Exception {
+        TopicInferencer inferencer = cache.get(url, TopicInferencer.class);
+        cache.get(url, TopicInferencer.class);
+        List<ModelUsage> models = cache.getModels();
+        assertEquals(1, models.size());
+        ModelUsage usage = models.get(0);
+        assertEquals(url.toExternalForm(), usage.getKey());
+        assertEquals(1, usage.getHits());
+
+        // at least the type/topic counts
+        long counts = 0;
+        for (int[] topics : Inferencers.typeTopicCounts(inferencer)) {
+            counts += 4L * topics.length;
+        }
+        assertTrue("Estimate is smaller than the parameters", usage.getBytes() > counts);
+        assertEquals(usage.getBytes(), cache.getBytes());
+    }
+
+    @Test(expected = ModelTooLargeException.class)
+    public void testRejectsModelLargerThanBudget() throws Exception {
+        cache.setMaxBytes(1024);
+        try {
+            cache.get(url, TopicInferencer.class);
+        } finally {
+            assertEquals(0, cache.getModelCount());
+            assertEquals(1, cache.getRejections());
+        }
+    }
+
+    @Test
+    public void testReloadChangedFile() throws Exception {
+        File file = File.createTempFile("model", ".inferencer");
+        file.deleteOnExit();
+        Files.copy(url.openStream(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        URL fileUrl = file.toURI().toURL();
+
+        TopicInferencer first = cache.get(fileUrl, TopicInferencer.class);
+        cache.reload();
+        assertEquals("Unchanged model was reloaded", 0, cache.getReloads());
+
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        cache.reload();
+        assertEquals(1, cache.getReloads());
+        assertNotSame("Changed model was not reloaded", first, cache.get(fileUrl, TopicInferencer.class));
+    }
+
+    @Test
+    public void testFailedReloadKeepsModel() throws Exception {
+        File file = File.createTempFile("model", ".inferencer");
+        file.deleteOnExit();
+        Files.copy(url.openStream(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        URL fileUrl = file.toURI().toURL();
+        TopicInferencer first = cache.get(fileUrl, TopicInferencer.class);
+
+        Files.write(file.toPath(), "not a model".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(errors, true));
+        try {
+            cache.reload();
+            cache.reload();
+        } finally {
+            System.setErr(err);
+        }
+        assertEquals(0, cache.getReloads());
+        assertSame(first, cache.get(fileUrl, TopicInferencer.class));
+        // reported on the first poll only
+        String report = errors.toString();
+        assertTrue(report.contains("Unable to reload"));
+        assertEquals(report.indexOf("Unable to reload"), report.lastIndexOf("Unable to reload"));
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<TopicInferencer>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<TopicInferencer>() {
+                public TopicInferencer call() throws Exception {
+                    start.await();
+                    return cache.get(url, TopicInferencer.class);
+                }
+            }));
+        }
+        start.countDown();
+        TopicInferencer first = results.get(0).get();
+        for (Future<TopicInferencer> result : results) {
+            assertSame("Model was loaded more than once", first, result.get());
+        }
+        executor.shutdown();
+        assertEquals(1, cache.getMisses());
+        assertEquals(threads - 1, cache.getHits() + cache.getSharedLoads());
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void testWrongModelType() throws Exception {
+        cache.get(url, Classifier.class);
+    }
+
+    @Test
+    public void testLoadsCompressedModels() throws Exception {
+        for (String compression : new String[]{ModelCompression.GZIP, ModelCompression.DEFLATE}) {
+            File file = File.createTempFile("model", ".inferencer");
+            file.deleteOnExit();
+            Files.copy(url.openStream(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            long size = file.length();
+            ModelCompression.compress(file, compression);
+            assertTrue(compression + " did not compress the model", file.length() < size);
+
+            TopicInferencer inferencer = cache.get(file.toURI().toURL(), TopicInferencer.class);
+            assertEquals(10, Inferencers.numTopics(inferencer));
+        }
+    }
+
+    @Test
+    public void testTopicModelKeysParsedOnce() throws Exception {
+        URL keys = this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt");
+        TopicModel first = cache.getTopicModel(url, keys, false);
+        TopicModel second = cache.getTopicModel(url, keys, false);
+        assertSame("Cached topic model was not reused", first, second);
+        assertSame(first.getKeys(), second.getKeys());
+        assertEquals(10, first.getNumTopics());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test(expected = InvalidObjectException.class)
+    public void testTopicKeysMismatchFailsAtLoad() throws Exception {
+        URL keys = this.getClass().getResource("/masc_500k_texts_topic_keys.txt");
+        cache.getTopicModel(url, keys, false);
+    }
+}
@@ -0,0 +1,134 @@
+package org.lappsgrid.mallet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestModelMirror {
+
+    protected HttpServer server;
+    protected AtomicInteger requests = new AtomicInteger();
+    protected File directory;
+    protected ModelMirror mirror;
+    protected URL url;
+    protected byte[] model;
+
+    @Before
+    public void setUp() throws IOException {
+        try (InputStream in = this.getClass().getResourceAsStream("/masc_500k_texts(blog10topics).inferencer")) {
+            model = readAll(in);
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, model.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(model);
+                }
+            }
+        });
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/blog10topics.inferencer");
+
+        directory = Files.createTempDirectory("mirror").toFile();
+        mirror = new ModelMirror(directory);
+    }
+
+    @After
+    public void cleanup() {
+        server.stop(0);
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSecondLoadIsLocal() throws Exception {
+        ModelMirror.Copy first = mirror.get(url);
+        assertEquals(1, requests.get());
+        assertArrayEquals(model, Files.readAllBytes(first.file.toPath()));
+        assertNotNull("ETag was not recorded", first.version);
+
+        // a new mirror over the same directory, as after a restart
+        ModelMirror.Copy second = new ModelMirror(directory).get(url);
+        assertEquals("Mirrored model was fetched again", 1, requests.get());
+        assertEquals(first.file, second.file);
+        assertEquals(first.version, second.version);
+    }
+
+    @Test
+    public void testCorruptCopyIsFetchedAgain() throws Exception {
+        ModelMirror.Copy copy = mirror.get(url);
+        try (RandomAccessFile file = new RandomAccessFile(copy.file, "rw")) {
+            file.seek(100);
+            int b = file.read();
+            file.seek(100);
+            file.write(b ^ 0xff);
+        }
+        new ModelMirror(directory).get(url);
+        assertEquals(2, requests.get());
+        assertArrayEquals(model, Files.readAllBytes(copy.file.toPath()));
+    }
+
+    @Test
+    public void testNewDirectoryIsPrivate() throws Exception {
+        File nested = new File(directory, "models");
+        new ModelMirror(nested).get(url);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(nested.toPath()));
+            for (File file : nested.listFiles()) {
+                assertEquals(file.getName(), PosixFilePermissions.fromString("rw-------"),
+                        Files.getPosixFilePermissions(file.toPath()));
+            }
+        }
+        for (File file : nested.listFiles()) {
+            file.delete();
+        }
+        nested.delete();
+    }
+
+    @Test
+    public void testSharedDirectoryIsRefused() throws Exception {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        try {
+            mirror.get(url);
+            fail("A directory anyone can write to was used");
+        } catch (IOException e) {
+            assertEquals(0, requests.get());
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,111 @@
+package org.lappsgrid.mallet;
+
+import org.junit.After;
+import org.junit.Test;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestResultCache {
+
+    @After
+    public void cleanup() {
+        ResultCache.getInstance().setMaxBytes(0);
+        ResultCache.getInstance().clear();
+    }
+
+    @Test
+    public void testKeys() {
+        ResultCache cache = new ResultCache(1024 * 1024);
+        Object model = new Object();
+        String key = cache.key(model, "topics", 100, "some text");
+        assertEquals(key, cache.key(model, "topics", 100, "some text"));
+        assertFalse(key.equals(cache.key(model, "topics", 200, "some text")));
+        assertFalse(key.equals(cache.key(model, "topics", 100, "other text")));
+        assertFalse(key.equals(cache.key(new Object(), "topics", 100, "some text")));
+        // parts are not simply concatenated
+        assertFalse(cache.key(model, Arrays.asList("ab", "c")).equals(cache.key(model, Arrays.asList("a", "bc"))));
+        assertFalse(cache.key(model, "1").equals(cache.key(model, 1)));
+    }
+
+    @Test
+    public void testEviction() {
+        ResultCache cache = new ResultCache(1024 * 1024);
+        Object model = new Object();
+        cache.put(cache.key(model, "a"), new double[1000]);
+        cache.put(cache.key(model, "b"), new double[1000]);
+        assertEquals(2, cache.getResultCount());
+        assertNotNull(cache.get(cache.key(model, "a")));
+
+        // "b" is now the least recently used result
+        cache.setMaxBytes(cache.getBytes() - 1);
+        assertEquals(1, cache.getResultCount());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(cache.key(model, "b")));
+        assertNotNull(cache.get(cache.key(model, "a")));
+    }
+
+    @Test
+    public void testReset() {
+        ResultCache cache = new ResultCache(1024 * 1024);
+        Object model = new Object();
+        cache.put(cache.key(model, "a"), new double[1000]);
+        cache.get(cache.key(model, "a"));
+        cache.get(cache.key(model, "b"));
+        cache.reset();
+        assertEquals(0, cache.getResultCount());
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testDisabled() {
+        ResultCache cache = new ResultCache(0);
+        assertFalse(cache.isEnabled());
+        String key = cache.key(new Object(), "a");
+        cache.put(key, new double[10]);
+        assertEquals(0, cache.getResultCount());
+    }
+
+    @Test
+    public void testClassificationIsCached() {
+        ResultCache cache = ResultCache.getInstance();
+        cache.setMaxBytes(1024 * 1024);
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("classifier", this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier"));
+
+        String first = new DocumentClassification().execute(input.asJson());
+        long hits = cache.getHits();
+        String second = new DocumentClassification().execute(input.asJson());
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testSeededTopicsAreCached() {
+        ResultCache cache = ResultCache.getInstance();
+        cache.setMaxBytes(1024 * 1024);
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("inferencer", this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"));
+        input.setParameter("keys", this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"));
+        input.setParameter("seed", 42);
+
+        String first = new TopicModeling().execute(input.asJson());
+        long hits = cache.getHits();
+        String second = new TopicModeling().execute(input.asJson());
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(first, second);
+
+        // without a seed every request samples again
+        input.getParameters().remove("seed");
+        hits = cache.getHits();
+        new TopicModeling().execute(input.asJson());
+        assertEquals(hits, cache.getHits());
+    }
+}
@@ -1,5 +1,9 @@
 package org.lappsgrid.mallet;
 
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.iterator.StringArrayIterator;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -16,6 +20,7 @@ import org.lappsgrid.serialization.lif.View;
 import org.lappsgrid.vocabulary.Features;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -148,4 +153,108 @@ public class TestSequenceTagging {
 
         System.out.println(string);
     }
-}
\ No newline at end of file
+
+    // the tokens for "Don't count the days. Make the days count."
+    private Container tokens() {
+        Container container = new Container();
+        container.setText("Don't count the days. Make the days count.");
+        View view = container.newView();
+        String[] words = {"Don", "'t", "count", "the", "days", ".", "Make", "the", "days", "count", "."};
+        long[] starts = {0, 3, 6, 12, 16, 20, 22, 27, 31, 36, 41};
+        for (int i = 0; i < words.length; i++) {
+            Annotation a = view.newAnnotation("tok" + i, Discriminators.Uri.TOKEN,
+                    starts[i], starts[i] + words[i].length());
+            a.addFeature(Features.Token.WORD, words[i]);
+        }
+        return container;
+    }
+
+    @Test
+    public void testSentenceBoundaries() {
+        Container container = tokens();
+        List<Annotation> tokens = container.getView(0).getAnnotations();
+
+        // without sentence annotations the sentences end at the periods
+        List<int[]> sentences = SentenceTagging.sentences(container, tokens);
+        assertEquals(2, sentences.size());
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5}, sentences.get(0));
+        assertArrayEquals(new int[]{6, 7, 8, 9, 10}, sentences.get(1));
+
+        // sentence annotations take precedence
+        View view = container.newView();
+        view.addContains(Discriminators.Uri.SENTENCE, "test", "sentence");
+        view.newAnnotation("s0", Discriminators.Uri.SENTENCE, 0, 11);
+        view.newAnnotation("s1", Discriminators.Uri.SENTENCE, 12, 42);
+        sentences = SentenceTagging.sentences(container, tokens);
+        assertEquals(2, sentences.size());
+        assertArrayEquals(new int[]{0, 1, 2}, sentences.get(0));
+        assertArrayEquals(new int[]{3, 4, 5, 6, 7, 8, 9, 10}, sentences.get(1));
+    }
+
+    @Test
+    public void testExecuteBySentence() {
+        Data data = new DataContainer(tokens());
+        data.setDiscriminator(Discriminators.Uri.TOKEN);
+
+        // add parameters
+        data.setParameter("model", this.getClass().getResource("/masc_500k_texts_word_by_word.model"));
+        data.setParameter("sentences", true);
+
+        // call `execute()` with jsonized input,
+        String string = this.service.execute(data.asJson());
+        Data output = Serializer.parse(string, Data.class);
+        Container container = new Container((Map) output.getPayload());
+
+        // every token is tagged, in token order
+        List<Annotation> tagged = container.getView(0).getAnnotations();
+        assertEquals(11, tagged.size());
+        for (int i = 0; i < tagged.size(); i++) {
+            assertEquals("tok" + i, tagged.get(i).getId());
+            assertNotNull(tagged.get(i).getFeature(Features.Token.POS));
+        }
+
+        System.out.println(string);
+    }
+
+    @Test
+    public void testDirectInputMatchesPipe() throws Exception {
+        CRF crf = ModelCache.getInstance().get(
+                this.getClass().getResource("/masc_500k_texts_word_by_word.model"), CRF.class);
+        assertTrue("Model does not use SimpleTagger's pipe", CrfInput.isSupported(crf));
+
+        List<String> words = Arrays.asList("Don", "'t", "count", "the", "days", ".", "Make", "zyxxy", "count", ".");
+        StringBuilder text = new StringBuilder();
+        for (String word : words) {
+            text.append(word).append(" O\n");
+        }
+        InstanceList il = new InstanceList(crf.getInputPipe());
+        synchronized (crf.getInputPipe()) {
+            il.addThruPipe(new StringArrayIterator(new String[]{text.toString()}));
+        }
+        Sequence piped = crf.transduce((Sequence) il.get(0).getData());
+        Sequence direct = crf.transduce(CrfInput.sequence(crf, words));
+
+        assertEquals(piped.size(), direct.size());
+        for (int i = 0; i < piped.size(); i++) {
+            assertEquals(piped.get(i), direct.get(i));
+        }
+    }
+
+    @Test
+    public void testExecuteCompact() {
+        Data data = new DataContainer(tokens());
+        data.setDiscriminator(Discriminators.Uri.TOKEN);
+        data.setParameter("model", this.getClass().getResource("/masc_500k_texts_word_by_word.model"));
+        String pretty = this.service.execute(data.asJson());
+
+        data.setParameter("compact", true);
+        String compact = this.service.execute(data.asJson());
+        assertFalse("Compact output is indented", compact.contains("\n"));
+
+        // the same document, apart from the parameters
+        Data expected = Serializer.parse(pretty, Data.class);
+        Data actual = Serializer.parse(compact, Data.class);
+        assertEquals(expected.getDiscriminator(), actual.getDiscriminator());
+        assertEquals(expected.getPayload(), actual.getPayload());
+    }
+}
@@ -0,0 +1,66 @@
+package org.lappsgrid.mallet;
+
+import org.junit.Test;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.Serializer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestStageTimers {
+
+    @Test
+    public void testBuckets() {
+        // every value is within 1/16 of the top of its bucket
+        for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.bucket(value));
+            assertTrue(value <= highest);
+            assertTrue(highest - value <= value / 16);
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (long millis = 1; millis <= 100; millis++) {
+            histogram.record(millis * 1000000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50.5e6, histogram.getMean(), 1);
+        assertEquals(50e6, histogram.getPercentile(50), 50e6 / 16);
+        assertEquals(99e6, histogram.getPercentile(99), 99e6 / 16);
+        assertEquals(100000000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testServiceStages() {
+        StageTimers timers = StageTimers.forService(DocumentClassification.class);
+        timers.reset();
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("classifier", this.getClass().getResource("/masc_500k_texts(DecisionTree).classifier"));
+        new DocumentClassification().execute(input.asJson());
+
+        List<String> stages = new ArrayList<>();
+        for (StageLatency latency : timers.getStages()) {
+            stages.add(latency.getStage());
+            assertEquals(1, latency.getCount());
+        }
+        assertTrue(stages.contains(StageTimers.PARSE));
+        assertTrue(stages.contains(StageTimers.MODEL_LOAD_HIT) || stages.contains(StageTimers.MODEL_LOAD_MISS));
+        assertTrue(stages.contains(StageTimers.PIPE));
+        assertTrue(stages.contains(StageTimers.INFERENCE));
+        assertTrue(stages.contains(StageTimers.OUTPUT_BUILD));
+        assertTrue(stages.contains(StageTimers.SERIALIZE));
+
+        Map all = Serializer.parse(StageTimers.dumpAll(), Map.class);
+        assertEquals(stages.size(), ((List) all.get("DocumentClassification")).size());
+    }
+}
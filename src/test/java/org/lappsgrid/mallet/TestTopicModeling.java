@@ -1,6 +1,10 @@
 package org.lappsgrid.mallet;
 
 // JUnit modules for unit tests
+import cc.mallet.pipe.iterator.StringArrayIterator;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.InstanceList;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -10,9 +14,12 @@ import org.lappsgrid.metadata.IOSpecification;
 import org.lappsgrid.metadata.ServiceMetadata;
 import org.lappsgrid.serialization.Data;
 import org.lappsgrid.serialization.Serializer;
+import org.lappsgrid.serialization.lif.Container;
+import org.lappsgrid.serialization.lif.View;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -108,4 +115,136 @@ public class TestTopicModeling {
 
         System.out.println(string);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExecuteBatch() {
+        // a batch of documents, sampled in parallel
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            texts.add("Document " + i + ": the government announced a new policy on wildlife " +
+                    "protection and support for local schools, students and teachers.");
+        }
+        Data input = new Data<>(Discriminators.Uri.TEXT, texts);
+        input.setParameter("inferencer", this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"));
+        input.setParameter("keys", this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"));
+
+        // call `execute()` with jsonized input,
+        String string = this.service.execute(input.asJson());
+        Data output = Serializer.parse(string, Data.class);
+        assertEquals(string, Uri.JSON, output.getDiscriminator());
+
+        // one container per document, in input order, each with its topics
+        List<Map> containers = (List<Map>) output.getPayload();
+        assertEquals(texts.size(), containers.size());
+        for (int i = 0; i < texts.size(); i++) {
+            Container container = new Container(containers.get(i));
+            assertEquals(texts.get(i), container.getText());
+            assertEquals(1, container.getViews().size());
+            assertEquals(10, container.getViews().get(0).getAnnotations().size());
+        }
+    }
+
+    @Test
+    public void testSelectTopTopics() {
+        double[] proportions = {0.1, 0.4, 0.05, 0.3, 0.15};
+        assertArrayEquals(new int[]{1, 3}, new OutputLimits(2, 0.0).select(proportions));
+        assertArrayEquals(new int[]{0, 1, 3, 4}, new OutputLimits(Integer.MAX_VALUE, 0.1).select(proportions));
+        assertArrayEquals(new int[]{1}, new OutputLimits(3, 0.35).select(proportions));
+        assertArrayEquals(new int[0], new OutputLimits(0, 0.0).select(proportions));
+    }
+
+    @Test
+    public void testExecuteTopK() {
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("inferencer", this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"));
+        input.setParameter("keys", this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"));
+        input.setParameter("topK", 3);
+
+        String string = this.service.execute(input.asJson());
+        Data output = Serializer.parse(string, Data.class);
+        Container container = new Container((Map) output.getPayload());
+        assertEquals(3, container.getView(0).getAnnotations().size());
+    }
+
+    @Test
+    public void testExecuteWithTolerance() {
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("inferencer", this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"));
+        input.setParameter("keys", this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"));
+        input.setParameter("numIterations", 1000);
+        input.setParameter("burnIn", 10);
+        input.setParameter("thinning", 5);
+        input.setParameter("tolerance", 1.5);
+
+        String string = this.service.execute(input.asJson());
+        Data output = Serializer.parse(string, Data.class);
+        Container container = new Container((Map) output.getPayload());
+        View view = container.getView(0);
+        assertEquals(10, view.getAnnotations().size());
+        // the average of two samples is never further than 1 from the first one,
+        // so this tolerance is met by the second sample
+        Number iterations = (Number) view.getMetadata().get("iterations");
+        assertNotNull("Iterations were not reported", iterations);
+        assertEquals(20, iterations.intValue());
+    }
+
+    @Test
+    public void testExecuteWithTimeBudget() {
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("inferencer", this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"));
+        input.setParameter("keys", this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"));
+        input.setParameter("numIterations", Integer.MAX_VALUE);
+        input.setParameter("timeBudget", 50);
+
+        String string = this.service.execute(input.asJson());
+        Data output = Serializer.parse(string, Data.class);
+        Container container = new Container((Map) output.getPayload());
+        Number iterations = (Number) container.getView(0).getMetadata().get("iterations");
+        assertTrue(iterations.intValue() < Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testExecuteWithSeedIsRepeatable() {
+        Data input = new Data<>(Discriminators.Uri.TEXT,
+                "The government announced a new policy on wildlife protection and support for local schools.");
+        input.setParameter("inferencer", this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"));
+        input.setParameter("keys", this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"));
+        input.setParameter("seed", 7);
+
+        String first = this.service.execute(input.asJson());
+        String second = this.service.execute(input.asJson());
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testPipeUsesInferencerAlphabet() throws Exception {
+        TopicModel model = ModelCache.getInstance().getTopicModel(
+                this.getClass().getResource("/masc_500k_texts(blog10topics).inferencer"),
+                this.getClass().getResource("/masc_500k_texts(blog10topics)_keys.txt"), false);
+        Alphabet alphabet = Inferencers.alphabet(model.getInferencer());
+        int size = alphabet.size();
+
+        // two words of the model's vocabulary, and one it has never seen
+        List<String> known = new ArrayList<>();
+        for (int i = 0; i < size && known.size() < 2; i++) {
+            String word = alphabet.lookupObject(i).toString();
+            if (word.matches("[a-z]{4,}")) {
+                known.add(word);
+            }
+        }
+        InstanceList instances = new InstanceList(model.getPipe());
+        instances.addThruPipe(new StringArrayIterator(new String[]{
+                known.get(0) + " xqzxqzxqz " + known.get(1)}));
+        FeatureSequence features = (FeatureSequence) instances.get(0).getData();
+
+        // known words map to the inferencer's features, unknown words are dropped
+        assertSame(alphabet, features.getAlphabet());
+        assertEquals(size, alphabet.size());
+        assertEquals(2, features.size());
+        assertEquals(alphabet.lookupIndex(known.get(0), false), features.getIndexAtPosition(0));
+        assertEquals(alphabet.lookupIndex(known.get(1), false), features.getIndexAtPosition(1));
+    }
+}